@@ -25,4 +25,9 @@ public final class OpenstackCloudParameters {
     public static final String OPENSTACK_INSTANCE_ID = "agent.cloud.uuid";
     public static final String AGENT_CLOUD_TYPE = "agent.cloud.type";
     public static final String AGENT_CLOUD_IP = "agent.cloud.ip";
+
+    // Servers metadata identifying the profile/image/instance owning a server
+    public static final String SERVER_PROFILE_ID = "openstack.profile.id";
+    public static final String SERVER_IMAGE_ID = "openstack.image.id";
+    public static final String SERVER_INSTANCE_ID = "openstack.instance.id";
 }
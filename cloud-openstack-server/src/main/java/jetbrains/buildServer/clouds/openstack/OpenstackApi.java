@@ -1,9 +1,24 @@
 package jetbrains.buildServer.clouds.openstack;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
+import org.jclouds.Constants;
 import org.jclouds.ContextBuilder;
+import org.jclouds.concurrent.config.ExecutorServiceModule;
 import org.jclouds.location.reference.LocationConstants;
 import org.jclouds.openstack.keystone.config.KeystoneProperties;
 import org.jclouds.openstack.neutron.v2.NeutronApi;
@@ -14,16 +29,54 @@ import org.jclouds.openstack.nova.v2_0.NovaApi;
 import org.jclouds.openstack.nova.v2_0.NovaApiMetadata;
 import org.jclouds.openstack.nova.v2_0.domain.Flavor;
 import org.jclouds.openstack.nova.v2_0.domain.Image;
-import org.jclouds.openstack.nova.v2_0.features.ServerApi;
+import org.jclouds.openstack.nova.v2_0.domain.Server;
+import org.jclouds.openstack.nova.v2_0.domain.ServerCreated;
+import org.jclouds.openstack.nova.v2_0.options.CreateServerOptions;
+import org.jclouds.openstack.nova.v2_0.options.RebuildServerOptions;
+import org.jclouds.openstack.v2_0.domain.PaginatedCollection;
+import org.jclouds.openstack.v2_0.options.PaginationOptions;
+import org.jetbrains.annotations.NotNull;
 import org.springframework.util.StringUtils;
 
+import com.google.common.collect.ImmutableSet;
+import com.intellij.openapi.diagnostic.Logger;
+
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.NamedDaemonThreadFactory;
+
 public class OpenstackApi {
 
+    public static final String CACHE_TTL_KEY = "openstack.cache.ttl";
+    public static final int CACHE_TTL_DEFAULT_VALUE = 300;
+
+    public static final String CACHE_MISS_TTL_KEY = "openstack.cache.miss.ttl";
+    public static final int CACHE_MISS_TTL_DEFAULT_VALUE = 30;
+
+    public static final String JCLOUDS_USER_THREADS_KEY = "openstack.jclouds.user.threads";
+    public static final int JCLOUDS_USER_THREADS_DEFAULT_VALUE = 8;
+
+    public static final String JCLOUDS_SCHEDULER_THREADS_KEY = "openstack.jclouds.scheduler.threads";
+    public static final int JCLOUDS_SCHEDULER_THREADS_DEFAULT_VALUE = 1;
+
+    private static final Logger LOG = Logger.getInstance(Loggers.CLOUD_CATEGORY_ROOT);
+
     private final String region;
 
+    private final ResolutionCache imageIds = new ResolutionCache("image", this::listImageIds);
+    private final ResolutionCache flavorIds = new ResolutionCache("flavor", this::listFlavorIds);
+    private final ResolutionCache networkIds = new ResolutionCache("network", this::listNetworkIds);
+
     private final NeutronApi neutronApi;
     private final NovaApi novaApi;
 
+    // Calls limited per endpoint, service and operation class (keystone calls are done by jclouds on demand)
+    private final OpenstackRateLimiter novaRead;
+    private final OpenstackRateLimiter novaCreate;
+    private final OpenstackRateLimiter novaDelete;
+    private final OpenstackRateLimiter neutronRead;
+    private final OpenstackCircuitBreaker circuitBreaker;
+
     public OpenstackApi(String endpointUrl, String identity, String password, String region) {
 
         // For http content debug during unit tests,
@@ -32,12 +85,18 @@ public class OpenstackApi {
         // - Update log level to 'DEBUG' in 'log4j.xml'.
 
         this.region = region;
+        this.novaRead = OpenstackRateLimiter.forEndpoint(endpointUrl, "nova", OpenstackRateLimiter.Operation.READ);
+        this.novaCreate = OpenstackRateLimiter.forEndpoint(endpointUrl, "nova", OpenstackRateLimiter.Operation.CREATE);
+        this.novaDelete = OpenstackRateLimiter.forEndpoint(endpointUrl, "nova", OpenstackRateLimiter.Operation.DELETE);
+        this.neutronRead = OpenstackRateLimiter.forEndpoint(endpointUrl, "neutron", OpenstackRateLimiter.Operation.READ);
 
         final Properties overrides = new Properties();
         final String keyStoneVersion = getKeystoneVersion(endpointUrl);
         final OpenstackIdentity identityObject = new OpenstackIdentity(identity, keyStoneVersion);
         overrides.put(KeystoneProperties.KEYSTONE_VERSION, keyStoneVersion);
         overrides.put(LocationConstants.PROPERTY_ZONES, region);
+        overrides.put(Constants.PROPERTY_SCHEDULER_THREADS,
+                String.valueOf(Math.max(1, TeamCityProperties.getInteger(JCLOUDS_SCHEDULER_THREADS_KEY, JCLOUDS_SCHEDULER_THREADS_DEFAULT_VALUE))));
 
         if (!StringUtils.isEmpty(identityObject.getTenant())) {
             // Only for keystone v3, for v2 'tenant' is part of Credentials (cf. OpenstackIdentity)
@@ -47,55 +106,225 @@ public class OpenstackApi {
             overrides.put(KeystoneProperties.PROJECT_DOMAIN_NAME, identityObject.getTenantDomain());
         }
 
+        // User executor shared by all contexts; HTTP I/O is done on calling threads
         neutronApi = ContextBuilder.newBuilder(new NeutronApiMetadata()).credentials(identityObject.getCredendials(), password).endpoint(endpointUrl)
-                .overrides(overrides).buildApi(NeutronApi.class);
+                .overrides(overrides).modules(ImmutableSet.of(new ExecutorServiceModule(new ContextExecutor()))).buildApi(NeutronApi.class);
 
         novaApi = ContextBuilder.newBuilder(new NovaApiMetadata()).endpoint(endpointUrl).credentials(identityObject.getCredendials(), password)
-                .overrides(overrides).buildApi(NovaApi.class);
+                .overrides(overrides).modules(ImmutableSet.of(new ExecutorServiceModule(new ContextExecutor()))).buildApi(NovaApi.class);
+
+        // Availability probe: first flavor only
+        circuitBreaker = new OpenstackCircuitBreaker(String.format("%s %s", endpointUrl, region),
+                () -> novaRead.call(() -> novaApi.getFlavorApi(region).list(PaginationOptions.Builder.limit(1))));
     }
 
     public String getImageIdByName(String name) {
-        List<? extends Image> images = novaApi.getImageApi(region).listInDetail().concat().toList();
-        for (Image image : images) {
-            if (image.getName().equals(name))
-                return image.getId();
-        }
-        return null;
+        return imageIds.get(name);
     }
 
     public String getFlavorIdByName(String name) {
-        List<? extends Flavor> flavors = novaApi.getFlavorApi(region).listInDetail().concat().toList();
-        for (Flavor flavor : flavors) {
-            if (flavor.getName().equals(name))
-                return flavor.getId();
-        }
-        return null;
+        return flavorIds.get(name);
     }
 
     public String getNetworkIdByName(String name) {
-        List<? extends Network> networks = neutronApi.getNetworkApi(region).list().concat().toList();
-        for (Network network : networks) {
-            if (network.getName().equals(name))
-                return network.getId();
-        }
-        return null;
+        return networkIds.get(name);
     }
 
-    public ServerApi getNovaServerApi() {
-        return novaApi.getServerApi(region);
+    /**
+     * Load images, flavors and networks catalogs in parallel (all next resolutions by name are done in memory)
+     * 
+     * @param executor Executor for the three listings
+     * @return Completion of the three listings
+     */
+    public CompletableFuture<Void> preloadCatalogs(Executor executor) {
+        return CompletableFuture.allOf(CompletableFuture.runAsync(imageIds::load, executor), CompletableFuture.runAsync(flavorIds::load, executor),
+                CompletableFuture.runAsync(networkIds::load, executor));
+    }
+
+    private Map<String, String> listImageIds() {
+        return call(novaRead, "catalog.images", () -> {
+            final Map<String, String> ids = new HashMap<>();
+            for (Image image : novaApi.getImageApi(region).listInDetail().concat()) {
+                ids.putIfAbsent(image.getName(), image.getId());
+            }
+            return ids;
+        });
+    }
+
+    private Map<String, String> listFlavorIds() {
+        return call(novaRead, "catalog.flavors", () -> {
+            final Map<String, String> ids = new HashMap<>();
+            for (Flavor flavor : novaApi.getFlavorApi(region).listInDetail().concat()) {
+                ids.putIfAbsent(flavor.getName(), flavor.getId());
+            }
+            return ids;
+        });
+    }
+
+    private Map<String, String> listNetworkIds() {
+        return call(neutronRead, "catalog.networks", () -> {
+            final Map<String, String> ids = new HashMap<>();
+            for (Network network : neutronApi.getNetworkApi(region).list().concat()) {
+                ids.putIfAbsent(network.getName(), network.getId());
+            }
+            return ids;
+        });
+    }
+
+    /**
+     * @return false if OpenStack is considered unavailable (calls currently refused, cf. {@link OpenstackCircuitBreaker})
+     */
+    public boolean isAvailable() {
+        return circuitBreaker.isAvailable();
+    }
+
+    // Each attempt is measured as 'api.<operation>' (duration) and 'api.<operation>.errors' (failures count)
+    private <T> T call(OpenstackRateLimiter limiter, String operation, Supplier<T> call) {
+        return call(limiter, operation, call, true);
+    }
+
+    // Non idempotent calls (server creation, rebuild, floating ip association) are not retryable on ambiguous over limit answers (503)
+    private <T> T call(OpenstackRateLimiter limiter, String operation, Supplier<T> call, boolean idempotent) {
+        return circuitBreaker.call(() -> limiter.call(() -> {
+            final long begin = System.currentTimeMillis();
+            try {
+                return call.get();
+            } catch (RuntimeException e) {
+                OpenstackMetrics.getInstance().increment("api." + operation + ".errors");
+                throw e;
+            } finally {
+                OpenstackMetrics.getInstance().record("api." + operation, System.currentTimeMillis() - begin);
+            }
+        }, idempotent));
+    }
+
+    private void run(OpenstackRateLimiter limiter, String operation, Runnable call) {
+        run(limiter, operation, call, true);
+    }
+
+    private void run(OpenstackRateLimiter limiter, String operation, Runnable call, boolean idempotent) {
+        call(limiter, operation, () -> {
+            call.run();
+            return null;
+        }, idempotent);
+    }
+
+    public PaginatedCollection<Server> listServers(PaginationOptions options) {
+        return call(novaRead, "servers.list", () -> novaApi.getServerApi(region).listInDetail(options));
+    }
+
+    public Server getServer(String serverId) {
+        return call(novaRead, "servers.get", () -> novaApi.getServerApi(region).get(serverId));
+    }
+
+    public ServerCreated createServer(String name, String imageId, String flavorId, CreateServerOptions options) {
+        return call(novaCreate, "servers.create", () -> novaApi.getServerApi(region).create(name, imageId, flavorId, options), false);
+    }
+
+    public void startServer(String serverId) {
+        run(novaCreate, "servers.start", () -> novaApi.getServerApi(region).start(serverId));
+    }
+
+    public void rebuildServer(String serverId, String imageId, String name) {
+        run(novaCreate, "servers.rebuild",
+                () -> novaApi.getServerApi(region).rebuild(serverId, RebuildServerOptions.Builder.withImage(imageId).name(name)), false);
+    }
+
+    public void setServerMetadata(String serverId, Map<String, String> metadata) {
+        run(novaCreate, "servers.metadata", () -> novaApi.getServerApi(region).setMetadata(serverId, metadata));
+    }
+
+    public void stopServer(String serverId) {
+        run(novaDelete, "servers.stop", () -> novaApi.getServerApi(region).stop(serverId));
+    }
+
+    public void deleteServer(String serverId) {
+        run(novaDelete, "servers.delete", () -> novaApi.getServerApi(region).delete(serverId));
     }
 
     public void associateFloatingIp(String serverId, String ip) {
-        novaApi.getFloatingIPApi(region).get().addToServer(ip, serverId);
+        run(novaCreate, "floatingips.associate", () -> novaApi.getFloatingIPApi(region).get().addToServer(ip, serverId), false);
+    }
+
+    public void disassociateFloatingIp(String serverId, String ip) {
+        run(novaDelete, "floatingips.disassociate", () -> novaApi.getFloatingIPApi(region).get().removeFromServer(ip, serverId));
+    }
+
+    public List<String> listFloatingIpsAvailable() {
+        return call(neutronRead, "floatingips.list", () -> {
+            final List<String> ips = new ArrayList<>();
+            for (FloatingIP ip : neutronApi.getFloatingIPApi(region).list().concat().toList()) {
+                if (StringUtils.isEmpty(ip.getFixedIpAddress())) {
+                    ips.add(ip.getFloatingIpAddress());
+                }
+            }
+            return ips;
+        });
+    }
+
+    /**
+     * Close jclouds contexts (cf. {@link OpenstackApiRegistry})
+     */
+    public void close() {
+        OpenstackRateLimiter.release(novaRead);
+        OpenstackRateLimiter.release(novaCreate);
+        OpenstackRateLimiter.release(novaDelete);
+        OpenstackRateLimiter.release(neutronRead);
+        try {
+            novaApi.close();
+            neutronApi.close();
+        } catch (IOException e) {
+            LOG.warn(String.format("Openstack api close failure: %s", e.getMessage()), e);
+        }
+    }
+
+    // Created on first api creation
+    static final class SharedExecutors {
+
+        static final ThreadPoolExecutor USER = createUserExecutor();
+
+        private static ThreadPoolExecutor createUserExecutor() {
+            final int threads = Math.max(1, TeamCityProperties.getInteger(JCLOUDS_USER_THREADS_KEY, JCLOUDS_USER_THREADS_DEFAULT_VALUE));
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                    new NamedDaemonThreadFactory("openstack-jclouds-user"));
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
     }
 
-    public String getFloatingIpAvailable() {
-        for (FloatingIP ip : neutronApi.getFloatingIPApi(region).list().concat().toList()) {
-            if (StringUtils.isEmpty(ip.getFixedIpAddress())) {
-                return ip.getFloatingIpAddress();
+    // View of the shared user executor for a jclouds context (context close shuts down its executor)
+    private static final class ContextExecutor extends AbstractExecutorService {
+
+        private volatile boolean shutdown = false;
+
+        public void execute(@NotNull final Runnable command) {
+            if (shutdown) {
+                throw new RejectedExecutionException("Openstack api closed");
             }
+            SharedExecutors.USER.execute(command);
+        }
+
+        public void shutdown() {
+            shutdown = true;
+        }
+
+        @NotNull
+        public List<Runnable> shutdownNow() {
+            shutdown = true;
+            return Collections.emptyList();
+        }
+
+        public boolean isShutdown() {
+            return shutdown;
+        }
+
+        public boolean isTerminated() {
+            return shutdown;
+        }
+
+        public boolean awaitTermination(final long timeout, @NotNull final TimeUnit unit) {
+            return shutdown;
         }
-        return null;
     }
 
     /**
@@ -116,4 +345,60 @@ public class OpenstackApi {
         return def;
     }
 
+    /**
+     * Name to id resolutions, from the whole catalog of a type (one listing for all names, kept during TTL from TeamCity properties).<br/>
+     * A not found name reloads the catalog (the resource could have been created since) if loaded for more than a short TTL (a misconfigured
+     * profile does not reload it on each launch), concurrent reloads share one OpenStack request, a name resolved to a new id (sample: image
+     * re-uploaded) is logged.
+     */
+    private static class ResolutionCache {
+
+        private final String type;
+        private final Supplier<Map<String, String>> lister;
+        private volatile Map<String, String> catalog = null;
+        private volatile long loadTime = 0;
+
+        ResolutionCache(String type, Supplier<Map<String, String>> lister) {
+            this.type = type;
+            this.lister = lister;
+        }
+
+        String get(String name) {
+            if (name == null) {
+                return null;
+            }
+            Map<String, String> current = catalog;
+            final long age = System.currentTimeMillis() - loadTime;
+            if (current == null || age > TimeUnit.SECONDS.toMillis(TeamCityProperties.getInteger(CACHE_TTL_KEY, CACHE_TTL_DEFAULT_VALUE))
+                    || (!current.containsKey(name)
+                            && age > TimeUnit.SECONDS.toMillis(TeamCityProperties.getInteger(CACHE_MISS_TTL_KEY, CACHE_MISS_TTL_DEFAULT_VALUE)))) {
+                current = reload(current);
+            }
+            return current.get(name);
+        }
+
+        void load() {
+            reload(catalog);
+        }
+
+        private synchronized Map<String, String> reload(Map<String, String> previous) {
+            if (catalog != previous) {
+                // Reloaded by another thread meanwhile
+                return catalog;
+            }
+            final Map<String, String> ids = Collections.unmodifiableMap(lister.get());
+            if (previous != null) {
+                for (Map.Entry<String, String> id : ids.entrySet()) {
+                    final String previousId = previous.get(id.getKey());
+                    if (previousId != null && !previousId.equals(id.getValue())) {
+                        LOG.info(String.format("Openstack %s '%s' now resolved to id %s (was %s)", type, id.getKey(), id.getValue(), previousId));
+                    }
+                }
+            }
+            LOG.debug(String.format("Openstack %s catalog loaded: %s entries", type, ids.size()));
+            catalog = ids;
+            loadTime = System.currentTimeMillis();
+            return ids;
+        }
+    }
 }
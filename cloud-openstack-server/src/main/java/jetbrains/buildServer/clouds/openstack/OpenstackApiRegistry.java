@@ -0,0 +1,151 @@
+package jetbrains.buildServer.clouds.openstack;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import com.intellij.openapi.diagnostic.Logger;
+
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.NamedDaemonThreadFactory;
+
+/**
+ * OpenStack APIs (jclouds contexts) shared by all the profiles using the same endpoint, credentials and region.<br/>
+ * An API is reference counted, and closed only some time after its last release: a profile update (client disposed, then created again)
+ * reuses the same jclouds contexts and authentication.
+ */
+public final class OpenstackApiRegistry {
+
+    public static final String API_LINGER_KEY = "openstack.api.linger";
+    public static final int API_LINGER_DEFAULT_VALUE = 60;
+
+    @NotNull
+    private static final Logger LOG = Logger.getInstance(Loggers.CLOUD_CATEGORY_ROOT);
+    @NotNull
+    private static final Map<Key, Entry> APIS = new HashMap<>();
+    @NotNull
+    private static final ScheduledExecutorService CLOSER = Executors
+            .newSingleThreadScheduledExecutor(new NamedDaemonThreadFactory("openstack-api-closer"));
+
+    private OpenstackApiRegistry() {
+        // Static only
+    }
+
+    /**
+     * Get the API for endpoint/credentials/region, created if not existing
+     *
+     * @return API, to be released (cf. {@link #release(OpenstackApi)}) when not used anymore
+     */
+    @NotNull
+    public static synchronized OpenstackApi acquire(@NotNull final String endpointUrl, @NotNull final String identity, @NotNull final String password,
+            @NotNull final String region) {
+        final Key key = new Key(endpointUrl, identity, password, region);
+        Entry entry = APIS.get(key);
+        if (entry == null) {
+            LOG.debug(String.format("Create openstack api for endpoint %s (identity: %s, region: %s)", endpointUrl, identity, region));
+            entry = new Entry(new OpenstackApi(endpointUrl, identity, password, region));
+            APIS.put(key, entry);
+        } else {
+            LOG.debug(String.format("Reuse openstack api for endpoint %s (identity: %s, region: %s)", endpointUrl, identity, region));
+        }
+        if (entry.closing != null) {
+            entry.closing.cancel(false);
+            entry.closing = null;
+        }
+        entry.references++;
+        return entry.api;
+    }
+
+    /**
+     * Release an API, closed after linger delay if not acquired again meanwhile
+     *
+     * @param api API
+     */
+    public static synchronized void release(@NotNull final OpenstackApi api) {
+        for (Map.Entry<Key, Entry> e : APIS.entrySet()) {
+            final Entry entry = e.getValue();
+            if (entry.api == api) {
+                entry.references--;
+                if (entry.references <= 0) {
+                    final int linger = TeamCityProperties.getInteger(API_LINGER_KEY, API_LINGER_DEFAULT_VALUE);
+                    if (linger <= 0) {
+                        close(entry);
+                    } else {
+                        entry.closing = CLOSER.schedule(() -> close(entry), linger, TimeUnit.SECONDS);
+                    }
+                }
+                return;
+            }
+        }
+    }
+
+    private static synchronized void close(@NotNull final Entry entry) {
+        if (entry.references > 0) {
+            return;
+        }
+        for (Iterator<Entry> it = APIS.values().iterator(); it.hasNext();) {
+            if (it.next() == entry) {
+                it.remove();
+                LOG.debug("Close openstack api not used anymore");
+                entry.api.close();
+                return;
+            }
+        }
+    }
+
+    private static final class Entry {
+        @NotNull
+        private final OpenstackApi api;
+        private int references = 0;
+        @Nullable
+        private ScheduledFuture<?> closing;
+
+        Entry(@NotNull final OpenstackApi api) {
+            this.api = api;
+        }
+    }
+
+    private static final class Key {
+        private final String endpointUrl;
+        private final String identity;
+        private final String password;
+        private final String region;
+        private final String keystoneVersion;
+
+        Key(String endpointUrl, String identity, String password, String region) {
+            this.endpointUrl = endpointUrl;
+            this.identity = identity;
+            this.password = password;
+            this.region = region;
+            this.keystoneVersion = OpenstackApi.getKeystoneVersion(endpointUrl);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return endpointUrl.equals(other.endpointUrl) && identity.equals(other.identity) && password.equals(other.password)
+                    && region.equals(other.region) && keystoneVersion.equals(other.keystoneVersion);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(endpointUrl, identity, password, region, keystoneVersion);
+        }
+    }
+
+}
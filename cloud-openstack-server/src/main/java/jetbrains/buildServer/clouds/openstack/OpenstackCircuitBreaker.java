@@ -0,0 +1,211 @@
+package jetbrains.buildServer.clouds.openstack;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+import org.jclouds.http.HttpResponse;
+import org.jclouds.http.HttpResponseException;
+import org.jclouds.rest.RetryAfterException;
+import org.jetbrains.annotations.NotNull;
+
+import com.google.common.util.concurrent.UncheckedTimeoutException;
+import com.intellij.openapi.diagnostic.Logger;
+
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+
+/**
+ * Circuit breaker in front of an OpenStack connection.<br/>
+ * Closed: calls go through; after some consecutive outage failures (I/O error, timeout, HTTP 5xx; not client errors like 4xx or 401, nor
+ * throttling), the circuit opens. Open: calls fail immediately. Once open delay is elapsed, next call first probes OpenStack with one
+ * lightweight call (half-open, other calls still failing immediately): the circuit closes if probe succeeds (or is answered by OpenStack),
+ * or opens again.
+ */
+public class OpenstackCircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    public static final String CIRCUIT_FAILURES_KEY = "openstack.circuit.failures";
+    public static final int CIRCUIT_FAILURES_DEFAULT_VALUE = 5;
+
+    public static final String CIRCUIT_OPEN_KEY = "openstack.circuit.open";
+    public static final int CIRCUIT_OPEN_DEFAULT_VALUE = 30;
+
+    /**
+     * Call refused, OpenStack being considered unavailable
+     */
+    public static class CircuitOpenException extends IllegalStateException {
+        private static final long serialVersionUID = 1L;
+
+        public CircuitOpenException(@NotNull final String message, final Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    @NotNull
+    private static final Logger LOG = Logger.getInstance(Loggers.CLOUD_CATEGORY_ROOT);
+    @NotNull
+    private final String name;
+    @NotNull
+    private final Runnable probe;
+    @NotNull
+    private State state = State.CLOSED;
+    private int failures = 0;
+    private long openUntil = 0;
+    private Throwable lastFailure = null;
+
+    /**
+     * @param name Connection name (logs)
+     * @param probe Lightweight OpenStack call, checking availability
+     */
+    public OpenstackCircuitBreaker(@NotNull final String name, @NotNull final Runnable probe) {
+        this.name = name;
+        this.probe = probe;
+    }
+
+    public <T> T call(@NotNull final Supplier<T> call) {
+        beforeCall();
+        try {
+            final T result = call.get();
+            succeeded();
+            return result;
+        } catch (RuntimeException e) {
+            if (e instanceof OpenstackRateLimiter.OverLimitException) {
+                // Throttled, not an outage: OpenStack answered, or call just refused by local rate limit
+                if (e.getCause() != null) {
+                    succeeded();
+                }
+            } else if (isOutage(e)) {
+                failed(e);
+            } else {
+                succeeded();
+            }
+            throw e;
+        }
+    }
+
+    public void run(@NotNull final Runnable call) {
+        call(() -> {
+            call.run();
+            return null;
+        });
+    }
+
+    /**
+     * @return false if calls are currently refused (open, and probe not yet due or in progress)
+     */
+    public synchronized boolean isAvailable() {
+        return state == State.CLOSED || (state == State.OPEN && System.currentTimeMillis() >= openUntil);
+    }
+
+    @NotNull
+    public synchronized State getState() {
+        return state;
+    }
+
+    private void beforeCall() {
+        synchronized (this) {
+            if (state == State.CLOSED) {
+                return;
+            }
+            if (state == State.HALF_OPEN || System.currentTimeMillis() < openUntil) {
+                throw new CircuitOpenException(String.format("OpenStack unavailable (%s), next check in %ss", name,
+                        Math.max(0, TimeUnit.MILLISECONDS.toSeconds(openUntil - System.currentTimeMillis()))), lastFailure);
+            }
+            state = State.HALF_OPEN;
+        }
+        LOG.info(String.format("Checking OpenStack availability (%s)", name));
+        Throwable failure = null;
+        try {
+            probe.run();
+        } catch (Throwable e) {
+            // Never left half-open, whatever the failure
+            failure = e;
+        }
+        // Probe failed, but OpenStack answered it (sample: 401)
+        final boolean available = failure == null || isAnswered(failure);
+        synchronized (this) {
+            if (available) {
+                state = State.CLOSED;
+                failures = 0;
+                lastFailure = null;
+            } else {
+                open(failure);
+            }
+        }
+        if (!available) {
+            if (failure instanceof Error) {
+                throw (Error) failure;
+            }
+            throw new CircuitOpenException(String.format("OpenStack still unavailable (%s): %s", name, failure.getMessage()), failure);
+        }
+        LOG.info(String.format("OpenStack available again (%s)", name));
+    }
+
+    private synchronized void succeeded() {
+        failures = 0;
+    }
+
+    private synchronized void failed(@NotNull final Throwable e) {
+        failures++;
+        if (state == State.CLOSED && failures >= TeamCityProperties.getInteger(CIRCUIT_FAILURES_KEY, CIRCUIT_FAILURES_DEFAULT_VALUE)) {
+            LOG.warn(String.format("OpenStack unavailable (%s) after %s consecutive failures, calls suspended: %s", name, failures,
+                    e.getMessage()));
+            open(e);
+        }
+    }
+
+    // Caller holds the lock
+    private void open(@NotNull final Throwable e) {
+        state = State.OPEN;
+        lastFailure = e;
+        openUntil = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TeamCityProperties.getInteger(CIRCUIT_OPEN_KEY, CIRCUIT_OPEN_DEFAULT_VALUE));
+    }
+
+    /**
+     * @param e OpenStack call failure
+     * @return true if failure means OpenStack is not available (I/O error, timeout, server error; not a 503 over limit answer, with
+     *         Retry-After, left to the rate limiter)
+     */
+    static boolean isOutage(@NotNull final Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof RetryAfterException) {
+                return false;
+            }
+            if (cause instanceof HttpResponseException && ((HttpResponseException) cause).getResponse() != null) {
+                final HttpResponse response = ((HttpResponseException) cause).getResponse();
+                return response.getStatusCode() >= 500
+                        && !(response.getStatusCode() == 503 && response.getFirstHeaderOrNull("Retry-After") != null);
+            }
+            if (cause instanceof IOException || cause instanceof TimeoutException || cause instanceof UncheckedTimeoutException) {
+                return true;
+            }
+            if (cause.getCause() == cause) {
+                break;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param e OpenStack call failure
+     * @return true if OpenStack answered the call (HTTP response, not an outage)
+     */
+    static boolean isAnswered(@NotNull final Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof RetryAfterException
+                    || cause instanceof HttpResponseException && ((HttpResponseException) cause).getResponse() != null) {
+                return !isOutage(e);
+            }
+            if (cause.getCause() == cause) {
+                break;
+            }
+        }
+        return false;
+    }
+
+}
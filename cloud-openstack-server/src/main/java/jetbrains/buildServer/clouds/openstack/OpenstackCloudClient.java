@@ -1,23 +1,30 @@
 package jetbrains.buildServer.clouds.openstack;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
 
+import org.jclouds.openstack.nova.v2_0.domain.Server;
 import org.jclouds.openstack.nova.v2_0.options.CreateServerOptions;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.yaml.snakeyaml.Yaml;
 
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMultimap;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.util.ObjectUtils;
 import com.jcabi.log.VerboseRunnable;
@@ -29,28 +36,77 @@ import jetbrains.buildServer.clouds.CloudErrorInfo;
 import jetbrains.buildServer.clouds.CloudImage;
 import jetbrains.buildServer.clouds.CloudInstance;
 import jetbrains.buildServer.clouds.CloudInstanceUserData;
+import jetbrains.buildServer.clouds.InstanceStatus;
 import jetbrains.buildServer.log.Loggers;
 import jetbrains.buildServer.serverSide.AgentDescription;
 import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.SBuildAgent;
+import jetbrains.buildServer.serverSide.SRunningBuild;
 import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.EventDispatcher;
 import jetbrains.buildServer.util.StringUtil;
 
 public class OpenstackCloudClient extends BuildServerAdapter implements CloudClientEx {
+
+    @NotNull
+    public static final String DELAY_STATUS_INITIAL_KEY = "openstack.status.initial";
+    @NotNull
+    public static final int DELAY_STATUS_INITIAL_DEFAULT_VALUE = 5;
+
+    @NotNull
+    public static final String DELAY_STATUS_DELAY_KEY = "openstack.status.delay";
+    @NotNull
+    public static final int DELAY_STATUS_DELAY_DEFAULT_VALUE = 10;
+
+    @NotNull
+    public static final String DELAY_STATUS_FAST_KEY = "openstack.status.fast";
+    @NotNull
+    public static final int DELAY_STATUS_FAST_DEFAULT_VALUE = 2;
+
+    @NotNull
+    public static final String DELAY_STATUS_JITTER_KEY = "openstack.status.jitter";
+    @NotNull
+    public static final int DELAY_STATUS_JITTER_DEFAULT_VALUE = 20;
+
     @NotNull
     private static final Logger LOG = Logger.getInstance(Loggers.CLOUD_CATEGORY_ROOT);
     @NotNull
     private final List<OpenstackCloudImage> cloudImages = new ArrayList<>();
     @NotNull
     private final OpenstackApi openstackApi;
+    @NotNull
+    private final String profileId;
+    private OpenstackServersSnapshot serversSnapshot;
+    private OpenstackInstanceIndex instanceIndex;
+    @Nullable
+    private OpenstackLaunchPipeline.Dispatcher launchDispatcher;
     @Nullable
     private CloudErrorInfo errorInfo = null;
     @Nullable
     private final Integer instanceCap;
     private ScheduledExecutorService executor;
-    private ScheduledFuture<?> initialized;
+    @NotNull
+    private final Object pollLock = new Object();
+    @Nullable
+    private ScheduledFuture<?> nextPoll;
+    // Delay (in milliseconds) requested by OpenStack rate limit, before next status update
+    private volatile long pollBackoff = 0;
+    @Nullable
+    private CompletableFuture<Void> initialized;
+    @Nullable
+    private ExecutorService initExecutor;
+    @Nullable
+    private OpenstackInstanceJournal journal;
+    private boolean rehydrated = false;
+    private boolean disposed = false;
+    @NotNull
+    private final EventDispatcher<BuildServerListener> eventDispatcher;
 
     public OpenstackCloudClient(@NotNull final CloudClientParameters params, @NotNull ServerPaths serverPaths,
-            @NotNull final ExecutorServiceFactory factory) {
+            @NotNull final ExecutorServiceFactory factory, @NotNull final EventDispatcher<BuildServerListener> eventDispatcher) {
+        this.eventDispatcher = eventDispatcher;
 
         final String endpointUrl = params.getParameter(OpenstackCloudParameters.ENDPOINT_URL).trim();
         final String identity = params.getParameter(OpenstackCloudParameters.IDENTITY).trim();
@@ -58,7 +114,8 @@ public class OpenstackCloudClient extends BuildServerAdapter implements CloudCli
         final String region = params.getParameter(OpenstackCloudParameters.REGION).trim();
 
         instanceCap = Integer.parseInt(params.getParameter(OpenstackCloudParameters.INSTANCE_CAP));
-        openstackApi = new OpenstackApi(endpointUrl, identity, password, region);
+        openstackApi = OpenstackApiRegistry.acquire(endpointUrl, identity, password, region);
+        profileId = StringUtil.isEmpty(params.getProfileId()) ? "" : params.getProfileId();
 
         final String rawYaml = params.getParameter(OpenstackCloudParameters.IMAGES_PROFILES);
         LOG.debug(String.format("Using the following cloud parameters: endpointUrl=%s, identity=%s, zone=%s", endpointUrl, identity, region));
@@ -75,9 +132,10 @@ public class OpenstackCloudClient extends BuildServerAdapter implements CloudCli
             return;
         }
 
-        LOG.info(String.format("Testing credentials by retrieving servers list status (identity: %s)...", identity));
-        openstackApi.getNovaServerApi().listInDetail();
-
+        final OpenstackFloatingIpPool floatingIpPool = new OpenstackFloatingIpPool(openstackApi);
+        launchDispatcher = OpenstackLaunchPipeline.createDispatcher(profileId);
+        instanceIndex = new OpenstackInstanceIndex();
+        journal = OpenstackInstanceJournal.open(getJournalFile(serverPaths, profileId));
         final StringBuilder error = new StringBuilder();
         for (Map.Entry<String, Map<String, String>> entry : map.entrySet()) {
             final String imageName = entry.getKey().trim();
@@ -93,9 +151,22 @@ public class OpenstackCloudClient extends BuildServerAdapter implements CloudCli
             final String userScriptPath = entry.getValue().get("user_script");
             Boolean autoFloatingIp = (Boolean) (Object) entry.getValue().get("auto_floating_ip"); // Evil, but Yaml parse Boolean only for this
             autoFloatingIp = ObjectUtils.chooseNotNull(autoFloatingIp, false); // Can be null if not defined
+            Boolean reuse = (Boolean) (Object) entry.getValue().get("reuse");
+            reuse = ObjectUtils.chooseNotNull(reuse, false);
+            Boolean rebuild = (Boolean) (Object) entry.getValue().get("rebuild");
+            rebuild = ObjectUtils.chooseNotNull(rebuild, false);
+            // Yaml parse Integer for this one too ('standby' as alias)
+            final Object standbyValue = ObjectUtils.chooseNotNull((Object) entry.getValue().get("min_idle"), (Object) entry.getValue().get("standby"));
+            final int standby;
+            try {
+                standby = standbyValue == null ? 0 : Math.max(0, Integer.parseInt(String.valueOf(standbyValue).trim()));
+            } catch (NumberFormatException e) {
+                errorInfo = new CloudErrorInfo(String.format("Invalid standby instances count for image %s: %s", imageName, standbyValue));
+                return;
+            }
 
-            String networkId = openstackApi.getNetworkIdByName(networkName);
-            CreateServerOptions options = new CreateServerOptions().keyPairName(keyPair).securityGroupNames(securityGroupName).networks(networkId);
+            // Network resolved on launch (from catalog loaded by initialization)
+            CreateServerOptions options = new CreateServerOptions().keyPairName(keyPair).securityGroupNames(securityGroupName);
 
             final String availabilityZone = entry.getValue().get("availability_zone");
             if (!Strings.isNullOrEmpty(availabilityZone)) {
@@ -103,12 +174,16 @@ public class OpenstackCloudClient extends BuildServerAdapter implements CloudCli
             }
 
             LOG.debug(String.format(
-                    "Adding cloud image: imageName=%s, openstackImageName=%s, flavorName=%s, networkName=%s, networkId=%s, securityGroupName=%s, keyPair=%s, floatingIp=%s",
-                    imageName, openstackImageName, flavorName, networkName, networkId, securityGroupName, keyPair, autoFloatingIp));
+                    "Adding cloud image: imageName=%s, openstackImageName=%s, flavorName=%s, networkName=%s, securityGroupName=%s, keyPair=%s, floatingIp=%s",
+                    imageName, openstackImageName, flavorName, networkName, securityGroupName, keyPair, autoFloatingIp));
+            if (standby > 0) {
+                LOG.debug(String.format("Standby instances for image %s: %s", imageName, standby));
+            }
 
             LOG.info(String.format("Create image  [%s] ...", imageName));
-            final OpenstackCloudImage image = new OpenstackCloudImage(openstackApi, imageName /* imageIdGenerator.next() */, imageName,
-                    openstackImageName, flavorName, autoFloatingIp, options, userScriptPath, serverPaths, factory.createExecutorService(imageName));
+            final OpenstackCloudImage image = new OpenstackCloudImage(openstackApi, profileId, imageName /* imageIdGenerator.next() */, imageName,
+                    openstackImageName, flavorName, networkName, autoFloatingIp, standby, reuse, rebuild, floatingIpPool, options, userScriptPath, serverPaths, factory.createExecutorService(imageName),
+                    new OpenstackLaunchPipeline(imageName, launchDispatcher), instanceIndex, journal);
 
             cloudImages.add(image);
 
@@ -116,32 +191,277 @@ public class OpenstackCloudClient extends BuildServerAdapter implements CloudCli
 
         errorInfo = error.length() == 0 ? null : new CloudErrorInfo(error.substring(1));
 
-        // start asynchronous initialization:
-        this.executor = Executors.newSingleThreadScheduledExecutor();
-        this.initialized = this.executor.schedule(new VerboseRunnable(() -> {
-            for (OpenstackCloudImage cloudImage : cloudImages) {
-                cloudImage.initialize();
+        // Only servers potentially owned by the images are listed (ownership is checked on each server afterwards)
+        final List<String> imageNames = new ArrayList<>();
+        for (OpenstackCloudImage image : cloudImages) {
+            imageNames.add(image.getName());
+        }
+        serversSnapshot = new OpenstackServersSnapshot(openstackApi, ImmutableMultimap.of("name", getServersNameFilter(imageNames)));
+
+        rehydrateInstances();
+
+        registerGauges();
+
+        // start asynchronous initialization, then one status reconciliation loop shared by all images of the profile:
+        this.initialized = initialize(factory.createExecutorService("init"));
+        this.executor = factory.createExecutorService("profile");
+        schedulePoll(TimeUnit.SECONDS.toMillis(getTeamCityProperty(DELAY_STATUS_INITIAL_KEY, DELAY_STATUS_INITIAL_DEFAULT_VALUE)));
+
+        // Server events (instances launch timeline)
+        eventDispatcher.addListener(this);
+    }
+
+    @NotNull
+    static File getJournalFile(@NotNull final ServerPaths serverPaths, @NotNull final String profileId) {
+        return new File(new File(new File(serverPaths.getPluginDataDirectory(), OpenstackCloudParameters.PLUGIN_SHORT_NAME), "journal"),
+                (profileId.isEmpty() ? "default" : profileId) + ".journal");
+    }
+
+    /**
+     * Instances of previous server run known immediately from journal (agents matching, instance cap), then reconciled with servers by
+     * initialization: interrupted launches are resumed if their server exists, or cleaned up
+     */
+    private void rehydrateInstances() {
+        int count = 0;
+        for (OpenstackInstanceJournal.Entry entry : journal.load()) {
+            final OpenstackCloudImage image = findImageById(entry.getImageId());
+            if (image == null) {
+                // Image removed from profile: its servers (if any) are not managed anymore
+                journal.removed(entry.getImageId(), entry.getInstanceId());
+            } else {
+                image.rehydrateInstance(entry);
+                count++;
             }
-        }, true), 1, TimeUnit.SECONDS);
+        }
+        rehydrated = count > 0;
+        LOG.info(String.format("Openstack profile instances rehydrated from journal: %s", count));
     }
 
-    @Override
-    public boolean isInitialized() {
-        // wait for initialization completion:
-        if (this.initialized != null) {
+    /**
+     * Initialize the profile without blocking: catalogs (images, flavors, networks) and servers are listed in parallel, then each image is
+     * resolved and its instances (if any) restored concurrently
+     * 
+     * @param initExecutor Executor of the initialization (shut down once completed)
+     * @return Initialization completion
+     */
+    @NotNull
+    private CompletableFuture<Void> initialize(@NotNull final ExecutorService initExecutor) {
+        this.initExecutor = initExecutor;
+        final CompletableFuture<Void> catalogs = openstackApi.preloadCatalogs(initExecutor);
+        final CompletableFuture<Map<OpenstackCloudImage, List<Server>>> servers = CompletableFuture.supplyAsync(this::listServersByImage,
+                initExecutor);
+        final List<CompletableFuture<Void>> images = new ArrayList<>();
+        for (OpenstackCloudImage cloudImage : cloudImages) {
+            // Resolution errors (if any) are reported by image itself, so catalogs errors do not stop initialization
+            final CompletableFuture<String> openstackImageId = catalogs.handle((v, e) -> null).thenApplyAsync(v -> cloudImage.initialize(),
+                    initExecutor);
+            images.add(openstackImageId.thenAcceptBothAsync(servers, (imageId, imageServers) -> {
+                if (!StringUtil.isEmpty(imageId)) {
+                    cloudImage.restoreInstances(imageId, imageServers.get(cloudImage));
+                }
+            }, initExecutor));
+        }
+        final CompletableFuture<Void> all = CompletableFuture.allOf(images.toArray(new CompletableFuture[0]));
+        return all.whenComplete((v, e) -> {
+            initExecutor.shutdown();
+            if (e != null) {
+                final Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                LOG.error(String.format("Initialization failure: %s: %s", cause.getClass().getSimpleName(), cause.getMessage()), cause);
+                for (OpenstackCloudImage cloudImage : cloudImages) {
+                    cloudImage.processError("Current instances (if any) cannot be restored", cause instanceof Exception ? (Exception) cause
+                            : new OpenstackException(cause));
+                }
+            } else {
+                LOG.info(String.format("Openstack profile initialized (%s images)", cloudImages.size()));
+            }
+        });
+    }
+
+    // Update status of instances managed by all images, from one servers list
+    private void updateInstancesStatus() {
+        if (!openstackApi.isAvailable()) {
+            // Polling suspended until OpenStack availability is checked again, instances keeping their last status
+            LOG.debug("Openstack unavailable, instances status update skipped");
+            return;
+        }
+        LOG.debug("Updating instances status for openstack profile images");
+        final long begin = System.currentTimeMillis();
+        final Map<OpenstackCloudImage, List<Server>> servers;
+        try {
+            servers = listServersByImage();
+        } catch (OpenstackRateLimiter.OverLimitException e) {
+            // Instances keep their last status until next update
+            LOG.info(String.format("Instances status update delayed: %s", e.getMessage()));
+            pollBackoff = e.getDelay();
+            return;
+        } catch (Exception e) {
+            OpenstackMetrics.getInstance().increment("poll.errors");
+            for (OpenstackCloudImage cloudImage : getImages()) {
+                cloudImage.processStatusError(e);
+            }
+            return;
+        }
+        for (OpenstackCloudImage cloudImage : getImages()) {
+            cloudImage.updateInstancesStatus(servers.get(cloudImage));
+            maintainStandby(cloudImage);
+        }
+        OpenstackMetrics.getInstance().record("poll.cycle", System.currentTimeMillis() - begin);
+    }
+
+    // One status update, then next one scheduled according to instances transitions
+    private void poll() {
+        try {
+            updateInstancesStatus();
+        } finally {
+            schedulePoll(Math.max(getPollDelay(), pollBackoff));
+            pollBackoff = 0;
+        }
+    }
+
+    private void schedulePoll(final long delay) {
+        synchronized (pollLock) {
+            if (executor.isShutdown()) {
+                return;
+            }
             try {
-                this.initialized.get((long) cloudImages.size() * 3, TimeUnit.SECONDS);
-                if (this.executor != null) {
-                    executor.shutdown();
-                    executor = null;
+                nextPoll = executor.schedule(new VerboseRunnable(this::poll, true), delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                LOG.debug("Profile disposed, instances status update not scheduled");
+            }
+        }
+    }
+
+    /**
+     * Fast polling while instances are in transition (starting or stopping), so they reach their status sooner; otherwise slow polling, with
+     * jitter so that profiles do not poll in sync
+     *
+     * @return Delay (in milliseconds) before next status update
+     */
+    private long getPollDelay() {
+        long delay = TimeUnit.SECONDS.toMillis(getTeamCityProperty(DELAY_STATUS_DELAY_KEY, DELAY_STATUS_DELAY_DEFAULT_VALUE));
+        for (OpenstackCloudImage cloudImage : getImages()) {
+            if (cloudImage.hasInstancesInTransition()) {
+                delay = Math.min(delay, TimeUnit.SECONDS.toMillis(getTeamCityProperty(DELAY_STATUS_FAST_KEY, DELAY_STATUS_FAST_DEFAULT_VALUE)));
+                break;
+            }
+        }
+        final int jitter = Math.max(0, getTeamCityProperty(DELAY_STATUS_JITTER_KEY, DELAY_STATUS_JITTER_DEFAULT_VALUE));
+        return delay + ThreadLocalRandom.current().nextLong(delay * jitter / 100 + 1);
+    }
+
+    // Instance started or stopped: next status update brought forward, not waiting the end of a slow polling period
+    private void pollSoon() {
+        final long fast = TimeUnit.SECONDS.toMillis(getTeamCityProperty(DELAY_STATUS_FAST_KEY, DELAY_STATUS_FAST_DEFAULT_VALUE));
+        synchronized (pollLock) {
+            // Update not in progress (cancelled only if not yet started)
+            if (nextPoll != null && nextPoll.getDelay(TimeUnit.MILLISECONDS) > fast && nextPoll.cancel(false)) {
+                schedulePoll(fast);
+            }
+        }
+    }
+
+    // Standby pool of an image: replenished up to its size (within instance cap), or trimmed if no demand for a while
+    private void maintainStandby(@NotNull final OpenstackCloudImage cloudImage) {
+        // Only launches queued under lock: trimmed instances stopped outside of it (blocking OpenStack calls)
+        for (OpenstackCloudInstance instance : cloudImage.trimStandby()) {
+            instance.stop();
+        }
+        synchronized (this) {
+            while (cloudImage.needsStandbyInstance() && isBelowInstanceCap() && openstackApi.isAvailable()) {
+                cloudImage.startStandbyInstance();
+            }
+        }
+    }
+
+    // Launch queue depth per image, instances count per status
+    private void registerGauges() {
+        final OpenstackMetrics metrics = OpenstackMetrics.getInstance();
+        for (OpenstackCloudImage cloudImage : cloudImages) {
+            metrics.registerGauge(String.format("launch.queue.%s.%s", profileId, cloudImage.getName()), cloudImage::getLaunchQueueDepth);
+            if (cloudImage.isReuse()) {
+                metrics.registerGauge(String.format("parked.%s.%s", profileId, cloudImage.getName()), cloudImage::getParkedCount);
+            }
+            if (cloudImage.getStandby() > 0) {
+                metrics.registerGauge(String.format("standby.%s.%s", profileId, cloudImage.getName()), cloudImage::getStandbyCount);
+            }
+        }
+        for (InstanceStatus status : InstanceStatus.values()) {
+            metrics.registerGauge(String.format("instances.%s.%s", profileId, status.name().toLowerCase(Locale.ENGLISH)), () -> {
+                int count = 0;
+                for (OpenstackCloudImage cloudImage : getImages()) {
+                    for (OpenstackCloudInstance instance : cloudImage.getInstances()) {
+                        if (instance.getStatus() == status) {
+                            count++;
+                        }
+                    }
+                }
+                return count;
+            });
+        }
+    }
+
+    private void unregisterGauges() {
+        OpenstackMetrics.getInstance().unregisterGauges(String.format("launch.queue.%s.", profileId));
+        OpenstackMetrics.getInstance().unregisterGauges(String.format("standby.%s.", profileId));
+        OpenstackMetrics.getInstance().unregisterGauges(String.format("parked.%s.", profileId));
+        OpenstackMetrics.getInstance().unregisterGauges(String.format("instances.%s.", profileId));
+    }
+
+    /**
+     * List servers of the profile images (only one call whatever images count, incremental if possible), partitioned by owner image
+     * 
+     * @return Servers per image
+     */
+    @NotNull
+    private Map<OpenstackCloudImage, List<Server>> listServersByImage() {
+        final Map<OpenstackCloudImage, List<Server>> servers = new HashMap<>();
+        for (OpenstackCloudImage cloudImage : getImages()) {
+            servers.put(cloudImage, new ArrayList<>());
+        }
+        for (Server server : serversSnapshot.refresh()) {
+            for (OpenstackCloudImage cloudImage : getImages()) {
+                if (cloudImage.isOwnerOf(server)) {
+                    servers.get(cloudImage).add(server);
+                    break;
                 }
-            } catch (InterruptedException ex) {
-                Thread.currentThread().interrupt();
-            } catch (ExecutionException | TimeoutException ex) {
-                LOG.error(String.format("Initialization failure: %s: %s", ex.getClass().getSimpleName(), ex.getMessage()));
             }
         }
-        return true;
+        return servers;
+    }
+
+    /**
+     * Nova 'name' server side filter (regular expression) for servers of the images, named '&lt;image name&gt;-&lt;instance id&gt;'
+     * 
+     * @param imageNames Images names
+     * @return Regular expression
+     */
+    @NotNull
+    static String getServersNameFilter(@NotNull final Collection<String> imageNames) {
+        final StringBuilder filter = new StringBuilder("^(");
+        boolean first = true;
+        for (String imageName : imageNames) {
+            if (!first) {
+                filter.append('|');
+            }
+            first = false;
+            for (char c : imageName.toCharArray()) {
+                if (Character.isLetterOrDigit(c) || c == '-' || c == '_') {
+                    filter.append(c);
+                } else if (c == '\\' || c == '^' || c == ']') {
+                    filter.append('\\').append(c);
+                } else {
+                    filter.append('[').append(c).append(']');
+                }
+            }
+        }
+        return filter.append(")-[0-9]+$").toString();
+    }
+
+    @Override
+    public boolean isInitialized() {
+        // Never blocks, initialization failure (if any) reported on images; instances rehydrated from journal are known before
+        // initialization completes (reconciled with servers in background)
+        return initialized == null || initialized.isDone() || rehydrated;
     }
 
     @Nullable
@@ -160,14 +480,52 @@ public class OpenstackCloudClient extends BuildServerAdapter implements CloudCli
         if (!configParams.containsValue(OpenstackCloudParameters.CLOUD_TYPE)) {
             return null;
         }
-        for (OpenstackCloudImage image : getImages()) {
-            for (OpenstackCloudInstance instance : image.getInstances()) {
-                if (instance.getOpenstackInstanceId().equals(configParams.get(OpenstackCloudParameters.OPENSTACK_INSTANCE_ID))) {
-                    return instance;
-                }
+        return instanceIndex == null ? null : instanceIndex.findByServerId(configParams.get(OpenstackCloudParameters.OPENSTACK_INSTANCE_ID));
+    }
+
+    @Override
+    public void agentRegistered(@NotNull final SBuildAgent agent, final long currentlyRunningBuildId) {
+        final OpenstackCloudInstance instance = findInstanceByAgent(agent);
+        if (instance != null) {
+            instance.getTimeline().record(OpenstackLaunchTimeline.Milestone.AGENT_REGISTERED);
+            // Server is running, without waiting next status update
+            instance.agentRegistered();
+        }
+    }
+
+    @Override
+    public void agentUnregistered(@NotNull final SBuildAgent agent) {
+        final OpenstackCloudInstance instance = findInstanceByAgent(agent);
+        if (instance != null) {
+            // Server stopping (instance terminated) or stopped by itself: its status checked (then its resources reclaimed) at once
+            LOG.debug(String.format("Agent %s of instance %s unregistered", agent.getName(), instance.getName()));
+            pollSoon();
+        }
+    }
+
+    @Override
+    public void agentRemoved(@NotNull final SBuildAgent agent) {
+        final OpenstackCloudInstance instance = findInstanceByAgent(agent);
+        if (instance != null) {
+            // Instance termination left to TeamCity (agent remove policy), which may keep it (standby, parked): only its status checked at once
+            LOG.debug(String.format("Agent %s of instance %s removed", agent.getName(), instance.getName()));
+            pollSoon();
+        }
+    }
+
+    @Override
+    public void buildStarted(@NotNull final SRunningBuild build) {
+        final SBuildAgent agent = build.getAgent();
+        final OpenstackCloudInstance instance = agent == null ? null : findInstanceByAgent(agent);
+        if (instance != null) {
+            instance.getTimeline().record(OpenstackLaunchTimeline.Milestone.BUILD_STARTED);
+            instance.getImage().demanded();
+            if (instance.take()) {
+                // Build assigned by TeamCity to an idle standby agent
+                LOG.info(String.format("Standby instance %s handed out (build started)", instance.getName()));
+                maintainStandby(instance.getImage());
             }
         }
-        return null;
     }
 
     @NotNull
@@ -191,36 +549,50 @@ public class OpenstackCloudClient extends BuildServerAdapter implements CloudCli
     @Override
     @Deprecated
     public boolean canStartNewInstance(@NotNull final CloudImage image) { // TODO: NOSONAR Should work with 2017 and 2020
-        if (instanceCap == null) {
-            return true;
-        }
-        int i = 0;
-        for (final OpenstackCloudImage img : getImages()) {
-            i += img.getInstances().size();
-        }
-        return i < instanceCap;
+        // A standby instance (if any) is handed out, whatever the cap
+        return isBelowInstanceCap() || ((OpenstackCloudImage) image).getStandbyCount() > 0;
+    }
+
+    private boolean isBelowInstanceCap() {
+        return instanceCap == null || instanceIndex == null || instanceIndex.getCount() < instanceCap;
     }
 
     @Override
     public CanStartNewInstanceResult canStartNewInstanceWithDetails(@NotNull final CloudImage image) {
-        if (canStartNewInstance(image)) { // TODO: NOSONAR Should work with 2017 and 2020
+        if (((OpenstackCloudImage) image).getStandbyCount() > 0) {
+            // Handed out without any OpenStack call
             return CanStartNewInstanceResult.yes();
         }
-        return CanStartNewInstanceResult.no("Instance cap exceeded");
+        if (!canStartNewInstance(image)) { // TODO: NOSONAR Should work with 2017 and 2020
+            return CanStartNewInstanceResult.no("Instance cap exceeded");
+        }
+        if (!openstackApi.isAvailable()) {
+            return CanStartNewInstanceResult.no("OpenStack is unavailable");
+        }
+        if (((OpenstackCloudImage) image).isLaunchQueueFull()) {
+            return CanStartNewInstanceResult.no("Launch queue is full");
+        }
+        return CanStartNewInstanceResult.yes();
     }
 
     @NotNull
     public CloudInstance startNewInstance(@NotNull final CloudImage image, @NotNull final CloudInstanceUserData data) {
-        return ((OpenstackCloudImage) image).startNewInstance(data);
+        final OpenstackCloudImage cloudImage = (OpenstackCloudImage) image;
+        final OpenstackCloudInstance instance = cloudImage.startNewInstance(data);
+        maintainStandby(cloudImage);
+        pollSoon();
+        return instance;
     }
 
     @Override
     public void restartInstance(@NotNull final CloudInstance instance) {
         ((OpenstackCloudInstance) instance).restart();
+        pollSoon();
     }
 
     public void terminateInstance(@NotNull final CloudInstance instance) {
         ((OpenstackCloudInstance) instance).stop();
+        pollSoon();
     }
 
     @Nullable
@@ -230,12 +602,36 @@ public class OpenstackCloudClient extends BuildServerAdapter implements CloudCli
 
     @Override
     public void dispose() {
+        eventDispatcher.removeListener(this);
+        if (initExecutor != null)
+            initExecutor.shutdownNow();
+        if (executor != null) {
+            synchronized (pollLock) {
+                executor.shutdown();
+                // Pending update not run once shut down
+                if (nextPoll != null) {
+                    nextPoll.cancel(false);
+                }
+            }
+        }
+        // Instances stay live in journal for next profile instance (profile update, server restart)
+        if (journal != null)
+            journal.close();
         for (final OpenstackCloudImage image : getImages()) {
             image.dispose();
         }
         cloudImages.clear();
-        if (executor != null)
-            executor.shutdown();
+        if (launchDispatcher != null)
+            launchDispatcher.dispose();
+        unregisterGauges();
+        if (!disposed) {
+            disposed = true;
+            OpenstackApiRegistry.release(openstackApi);
+        }
+    }
+
+    private int getTeamCityProperty(String key, int defaultValue) {
+        return TeamCityProperties.getInteger(key, defaultValue);
     }
 
 }
@@ -2,7 +2,6 @@ package jetbrains.buildServer.clouds.openstack;
 
 import java.util.Collections;
 import java.util.Map;
-import java.util.concurrent.Executors;
 
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -15,9 +14,10 @@ import jetbrains.buildServer.clouds.CloudRegistrar;
 import jetbrains.buildServer.clouds.CloudState;
 import jetbrains.buildServer.log.Loggers;
 import jetbrains.buildServer.serverSide.AgentDescription;
+import jetbrains.buildServer.serverSide.BuildServerListener;
 import jetbrains.buildServer.serverSide.PropertiesProcessor;
 import jetbrains.buildServer.serverSide.ServerPaths;
-import jetbrains.buildServer.util.NamedDaemonThreadFactory;
+import jetbrains.buildServer.util.EventDispatcher;
 import jetbrains.buildServer.web.openapi.PluginDescriptor;
 
 public class OpenstackCloudClientFactory implements CloudClientFactory {
@@ -28,11 +28,14 @@ public class OpenstackCloudClientFactory implements CloudClientFactory {
     private final String cloudProfileSettings;
     @NotNull
     private final ServerPaths serverPaths;
+    @NotNull
+    private final EventDispatcher<BuildServerListener> eventDispatcher;
 
     public OpenstackCloudClientFactory(@NotNull final CloudRegistrar cloudRegistrar, @NotNull final PluginDescriptor pluginDescriptor,
-            @NotNull final ServerPaths serverPaths) {
+            @NotNull final ServerPaths serverPaths, @NotNull final EventDispatcher<BuildServerListener> eventDispatcher) {
         cloudProfileSettings = pluginDescriptor.getPluginResourcesPath("profile-settings.jsp");
         this.serverPaths = serverPaths;
+        this.eventDispatcher = eventDispatcher;
         cloudRegistrar.registerCloudFactory(this);
     }
 
@@ -68,7 +71,7 @@ public class OpenstackCloudClientFactory implements CloudClientFactory {
 
     @NotNull
     public OpenstackCloudClient createNewClient(@NotNull final CloudState state, @NotNull final CloudClientParameters params) {
-        return new OpenstackCloudClient(params, serverPaths,
-                duty -> Executors.newSingleThreadScheduledExecutor(new NamedDaemonThreadFactory("openstack-" + duty)));
+        return new OpenstackCloudClient(params, serverPaths, OpenstackScheduler.getInstance().createProfile(params.getProfileId()),
+                eventDispatcher);
     }
 }
@@ -1,22 +1,33 @@
 package jetbrains.buildServer.clouds.openstack;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
+import org.jclouds.openstack.nova.v2_0.domain.Address;
 import org.jclouds.openstack.nova.v2_0.domain.Server;
-import org.jclouds.openstack.nova.v2_0.features.ServerApi;
 import org.jclouds.openstack.nova.v2_0.options.CreateServerOptions;
 import org.jclouds.openstack.v2_0.domain.Resource;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMultimap;
 import com.intellij.openapi.diagnostic.Logger;
-import com.jcabi.log.VerboseRunnable;
+import com.intellij.openapi.util.text.StringUtil;
 
 import jetbrains.buildServer.clouds.CloudErrorInfo;
 import jetbrains.buildServer.clouds.CloudImage;
@@ -28,26 +39,31 @@ import jetbrains.buildServer.serverSide.TeamCityProperties;
 
 public class OpenstackCloudImage implements CloudImage {
 
-    @NotNull
-    public static final String DELAY_RESTORE_DELAY_KEY = "openstack.restore.delay";
-    @NotNull
-    public static final int DELAY_RESTORE_DELAY_DEFAULT_VALUE = 1;
+    public static final String STANDBY_IDLE_KEY = "openstack.standby.idle";
+    public static final int STANDBY_IDLE_DEFAULT_VALUE = 1800;
 
-    @NotNull
-    public static final String DELAY_STATUS_INITIAL_KEY = "openstack.status.initial";
-    @NotNull
-    public static final int DELAY_STATUS_INITIAL_DEFAULT_VALUE = 5;
+    public static final String STANDBY_BACKOFF_KEY = "openstack.standby.backoff";
+    public static final int STANDBY_BACKOFF_DEFAULT_VALUE = 30;
+    // Backoff doubled on each consecutive failure, up to this factor
+    private static final int STANDBY_BACKOFF_MAX_FACTOR = 32;
 
-    @NotNull
-    public static final String DELAY_STATUS_DELAY_KEY = "openstack.status.delay";
-    @NotNull
-    public static final int DELAY_STATUS_DELAY_DEFAULT_VALUE = 10;
+    // Standby instances which can be handed out, most advanced launch first
+    private static final List<InstanceStatus> STANDBY_STATUSES = Arrays.asList(InstanceStatus.RUNNING, InstanceStatus.STARTING,
+            InstanceStatus.SCHEDULED_TO_START, InstanceStatus.UNKNOWN);
+    // Instances in transition, status polled faster
+    private static final List<InstanceStatus> TRANSITION_STATUSES = Arrays.asList(InstanceStatus.SCHEDULED_TO_START, InstanceStatus.STARTING,
+            InstanceStatus.SCHEDULED_TO_STOP, InstanceStatus.STOPPING);
+
+    // Nova address type of floating ips ('OS-EXT-IPS:type')
+    private static final String FLOATING_ADDRESS_TYPE = "floating";
 
     @NotNull
     private static final Logger LOG = Logger.getInstance(Loggers.CLOUD_CATEGORY_ROOT);
     @NotNull
     private final OpenstackApi openstackApi;
     @NotNull
+    private final String profileId;
+    @NotNull
     private final String imageId;
     @NotNull
     private final String imageName;
@@ -55,63 +71,134 @@ public class OpenstackCloudImage implements CloudImage {
     private final String openstackImageName;
     @NotNull
     private final String flavorName;
+    @Nullable
+    private final String networkName;
     @NotNull
     private final boolean autoFloatingIp;
+    private final int standby;
+    private final boolean reuse;
+    private final boolean rebuild;
+    @NotNull
+    private final OpenstackFloatingIpPool floatingIpPool;
     @NotNull
     private final CreateServerOptions options;
     @Nullable
     private final String userScriptPath;
+    @Nullable
+    private final OpenstackUserScript userScript;
     @NotNull
     private final ServerPaths serverPaths;
     @NotNull
     private final ScheduledExecutorService executor;
+    @NotNull
+    private final OpenstackLaunchPipeline launchPipeline;
+    @NotNull
+    private final OpenstackInstanceIndex instanceIndex;
+    @NotNull
+    private final OpenstackInstanceJournal journal;
 
     @NotNull
     private final Map<String, OpenstackCloudInstance> instances = new ConcurrentHashMap<>();
     @NotNull
+    private final AtomicInteger instancesCount = new AtomicInteger();
+    @NotNull
     private final IdGenerator instanceIdGenerator = new IdGenerator();
+    @NotNull
+    private final AtomicReference<OpenstackLaunchTemplate> launchTemplate = new AtomicReference<>();
+    @NotNull
+    private final OpenstackParkedServers parkedServers = new OpenstackParkedServers();
+    @NotNull
+    private final OpenstackServerLookup serverLookup;
     @Nullable
     private CloudErrorInfo errorInfo = null;
-
-    public OpenstackCloudImage(@NotNull final OpenstackApi openstackApi, @NotNull final String imageId, @NotNull final String imageName,
-            @NotNull final String openstackImageName, @NotNull final String flavorId, @NotNull boolean autoFloatingIp,
-            @NotNull final CreateServerOptions options, @Nullable final String userScriptPath, @NotNull final ServerPaths serverPaths,
-            @NotNull final ScheduledExecutorService executor) {
+    // TeamCity user data of last launch request (standby instances launches), and time of last demand (launch request or build start)
+    @Nullable
+    private volatile String standbyUserData;
+    private volatile long lastDemand = 0;
+    // Consecutive standby launches failures, and time before which no standby instance is started again
+    private int standbyFailures = 0;
+    private long standbyRetryTime = 0;
+
+    public OpenstackCloudImage(@NotNull final OpenstackApi openstackApi, @NotNull final String profileId, @NotNull final String imageId,
+            @NotNull final String imageName,
+            @NotNull final String openstackImageName, @NotNull final String flavorId, @Nullable final String networkName,
+            @NotNull boolean autoFloatingIp, final int standby, final boolean reuse, final boolean rebuild,
+            @NotNull final OpenstackFloatingIpPool floatingIpPool, @NotNull final CreateServerOptions options, @Nullable final String userScriptPath, @NotNull final ServerPaths serverPaths,
+            @NotNull final ScheduledExecutorService executor, @NotNull final OpenstackLaunchPipeline launchPipeline,
+            @NotNull final OpenstackInstanceIndex instanceIndex, @NotNull final OpenstackInstanceJournal journal) {
         this.openstackApi = openstackApi;
+        this.profileId = profileId;
         this.imageId = imageId;
         this.imageName = imageName;
         this.openstackImageName = openstackImageName;
         this.flavorName = flavorId;
+        this.networkName = networkName;
         this.autoFloatingIp = autoFloatingIp;
+        this.standby = standby;
+        // Rebuilt servers are parked too
+        this.reuse = reuse || rebuild;
+        this.rebuild = rebuild;
+        this.floatingIpPool = floatingIpPool;
         this.options = options;
         this.userScriptPath = userScriptPath;
+        this.userScript = Strings.isNullOrEmpty(userScriptPath) ? null
+                : new OpenstackUserScript(
+                        new File(new File(serverPaths.getPluginDataDirectory(), OpenstackCloudParameters.PLUGIN_SHORT_NAME), userScriptPath));
         this.serverPaths = serverPaths;
         this.executor = executor;
-        this.executor.scheduleWithFixedDelay(new VerboseRunnable(() -> {
-            // Update status of instances managed by this image
-            LOG.debug(String.format("Updating instances status for openstack image: %s", getName()));
-            Map<String, Server.Status> status = new HashMap<>();
-            try {
-                for (Server server : openstackApi.getNovaServerApi().listInDetail().concat().filter(p -> p.getName().startsWith(getName()))) {
-                    status.put(server.getName(), server.getStatus());
-                }
-                resetAnyPreviousError();
-            } catch (Exception e) {
-                // All current instances will be set in error
-                processError("Instances status cannot be updated", e);
+        this.launchPipeline = launchPipeline;
+        this.instanceIndex = instanceIndex;
+        this.journal = journal;
+        this.serverLookup = new OpenstackServerLookup(openstackApi,
+                ImmutableMultimap.of("name", OpenstackCloudClient.getServersNameFilter(Collections.singleton(imageName))));
+    }
+
+    // Update status of instances managed by this image, from its part of the profile servers list
+    void updateInstancesStatus(@NotNull final Collection<Server> servers) {
+        LOG.debug(String.format("Updating instances status for openstack image: %s", getName()));
+        Map<String, Server> serversByName = new HashMap<>();
+        try {
+            for (Server server : servers) {
+                serversByName.put(server.getName(), server);
             }
-            for (OpenstackCloudInstance instance : getInstances()) {
-                // If any error on global status retrieve, fill UNKNOW, avoiding any occasional (and not wanted) termination
-                instance.updateStatus(getErrorInfo() != null ? Server.Status.UNKNOWN : status.get(instance.getName()));
-                if (instance.getStatus() == InstanceStatus.STOPPED || instance.getStatus() == InstanceStatus.ERROR) {
-                    forgetInstance(instance);
-                }
+            resetAnyPreviousError();
+        } catch (Exception e) {
+            // All current instances will be set in error
+            processError("Instances status cannot be updated", e);
+        }
+        updateInstancesStatus(serversByName);
+    }
+
+    // Servers list cannot be retrieved for the profile, all current instances will be set in error
+    void processStatusError(@NotNull final Exception e) {
+        processError("Instances status cannot be updated", e);
+        updateInstancesStatus(Collections.emptyMap());
+    }
+
+    private void updateInstancesStatus(@NotNull final Map<String, Server> servers) {
+        for (OpenstackCloudInstance instance : getInstances()) {
+            final Server server = servers.get(instance.getName());
+            if (instance.isRehydrated() && reconcileRehydrated(instance, server)) {
+                continue;
+            }
+            if (server != null && !server.getAddresses().isEmpty()) {
+                instance.getTimeline().record(OpenstackLaunchTimeline.Milestone.FIXED_IP);
+            }
+            // If any error on global status retrieve, fill UNKNOW, avoiding any occasional (and not wanted) termination
+            instance.updateStatus(getErrorInfo() != null ? Server.Status.UNKNOWN : server == null ? null : server.getStatus());
+            if (instance.getStatus() == InstanceStatus.STOPPED || instance.getStatus() == InstanceStatus.ERROR) {
+                forgetInstance(instance);
             }
-        }, true), getTeamCityProperty(DELAY_STATUS_INITIAL_KEY, DELAY_STATUS_INITIAL_DEFAULT_VALUE),
-                getTeamCityProperty(DELAY_STATUS_DELAY_KEY, DELAY_STATUS_DELAY_DEFAULT_VALUE), TimeUnit.SECONDS);
+        }
+        if (reuse && getErrorInfo() == null) {
+            for (OpenstackParkedServers.Parked parked : parkedServers.evict(p -> !servers.containsKey(getName() + "-" + p.getInstanceId()))) {
+                LOG.info(String.format("Parked server %s-%s evicted (parked for too long)", getName(), parked.getInstanceId()));
+                deleteParked(parked);
+            }
+        }
     }
 
-    private void processError(@NotNull String process, @NotNull final Exception e) {
+    void processError(@NotNull String process, @NotNull final Exception e) {
         final String message = e.getMessage();
         LOG.error(message, e);
         errorInfo = new CloudErrorInfo(process, message, e);
@@ -121,47 +208,58 @@ public class OpenstackCloudImage implements CloudImage {
         errorInfo = null;
     }
 
-    // Initialize the image
-    void initialize() {
-        final String openstackImageId = initialGetOpenstackImageId(5);
-        if (openstackImageId != null && !openstackImageId.isEmpty()) {
-            this.executor.schedule(new VerboseRunnable(() -> restoreInstances(openstackImageId), true),
-                    getTeamCityProperty(DELAY_RESTORE_DELAY_KEY, DELAY_RESTORE_DELAY_DEFAULT_VALUE), TimeUnit.SECONDS);
-        }
-    }
-
-    // Initially obtain openstack image id
-    private String initialGetOpenstackImageId(int trials) {
-        for (int i = 0; i < trials; i++) {
-            String v = openstackApi.getImageIdByName(openstackImageName);
-            if (v != null && !v.isEmpty())
-                return v;
+    // Initialize the image, returning the openstack image id (null if not found)
+    @Nullable
+    String initialize() {
+        if (userScript != null) {
+            // Any user script issue (sample: too large) reported on image, rather than on first instance start
             try {
-                Thread.sleep(500L);
-            } catch (InterruptedException ex) {
-                Thread.currentThread().interrupt();
-                break;
+                userScript.getUserData();
+            } catch (IOException | OpenstackException e) {
+                processError("User script cannot be loaded", e);
             }
         }
-        return null;
+        // Resolutions from catalogs loaded by profile initialization (a not found name loads again its catalog once)
+        try {
+            final String openstackImageId = openstackApi.getImageIdByName(openstackImageName);
+            if (StringUtil.isEmpty(openstackImageId)) {
+                LOG.warn(String.format("No openstack image can be found for name: %s (image: %s)", openstackImageName, getName()));
+            }
+            if (!StringUtil.isEmpty(networkName) && StringUtil.isEmpty(openstackApi.getNetworkIdByName(networkName))) {
+                LOG.warn(String.format("No openstack network can be found for name: %s (image: %s)", networkName, getName()));
+            }
+            return openstackImageId;
+        } catch (RuntimeException e) {
+            processError("Image cannot be initialized", e);
+            return null;
+        }
     }
 
-    // Restore instances of the image
-    private void restoreInstances(String openstackImageId) {
+    // Restore instances of the image, from its part of the profile servers list
+    void restoreInstances(@NotNull final String openstackImageId, @NotNull final Collection<Server> servers) {
         try {
             LOG.info(String.format("Restore potential instances for openstack image: %s", getName()));
-            for (Server server : openstackApi.getNovaServerApi().listInDetail().concat().filter(p -> p.getName().startsWith(getName()))) {
-                // Restore servers of the specified image id (all status, some could be shutdown but not terminated)
-                Resource simage = server.getImage();
-                if (simage != null && openstackImageId.equals(simage.getId())) {
-                    final String instanceId = server.getName().substring(server.getName().lastIndexOf('-') + 1);
-                    if (!instances.containsKey(instanceId)) {
-                        // Add only if not already existing (sample: started at profile creation)
-                        final OpenstackCloudInstance instance = new OpenstackCloudInstance(this, instanceId, serverPaths, executor, server);
-                        instances.put(instanceId, instance);
+            for (Server server : servers) {
+                // Restore servers of the image (all status, some could be shutdown but not terminated)
+                final String instanceId = server.getMetadata().get(OpenstackCloudParameters.SERVER_INSTANCE_ID);
+                if (reuse && instanceId != null && server.getStatus() == Server.Status.SHUTOFF) {
+                    // Parked before server restart
+                    restoreParked(instanceId, server);
+                } else if (instanceId != null) {
+                    restoreInstance(instanceId, server);
+                } else {
+                    // Servers created before metadata ownership: only the ones of the specified image id, instance id from name
+                    Resource simage = server.getImage();
+                    if (simage != null && openstackImageId.equals(simage.getId())) {
+                        restoreInstance(server.getName().substring(server.getName().lastIndexOf('-') + 1), server);
                     }
                 }
             }
+            for (OpenstackCloudInstance instance : getInstances()) {
+                if (instance.isRehydrated() && instance.getOpenstackInstanceId().isEmpty()) {
+                    dropInterruptedLaunch(instance);
+                }
+            }
             resetAnyPreviousError();
         } catch (Exception e) {
             processError("Current instances (if any) cannot be restored", e);
@@ -169,26 +267,304 @@ public class OpenstackCloudImage implements CloudImage {
 
     }
 
+    /**
+     * Reconcile an instance rehydrated from journal with a servers list, when not done by initialization (failed, or not yet done):
+     * server found adopted, interrupted launch without server dropped. Without any servers list (status errors), an interrupted launch
+     * is dropped after a timeout, not counted forever in instances limit
+     *
+     * @param instance Instance rehydrated from journal
+     * @param server Server of the instance in servers list, if any
+     * @return true if instance dropped
+     */
+    private boolean reconcileRehydrated(@NotNull final OpenstackCloudInstance instance, @Nullable final Server server) {
+        if (getErrorInfo() == null) {
+            if (server != null) {
+                instance.resume(server);
+            } else if (instance.getOpenstackInstanceId().isEmpty()) {
+                dropInterruptedLaunch(instance);
+                return true;
+            }
+        } else if (instance.getOpenstackInstanceId().isEmpty() && System.currentTimeMillis() - instance.getRehydratedTime() > 1000L
+                * TeamCityProperties.getInteger(OpenstackInstanceJournal.JOURNAL_RECONCILE_TIMEOUT_KEY,
+                        OpenstackInstanceJournal.JOURNAL_RECONCILE_TIMEOUT_DEFAULT_VALUE)) {
+            LOG.warn(String.format("Interrupted launch not reconciled with servers in time: %s", instance.getName()));
+            dropInterruptedLaunch(instance);
+            return true;
+        }
+        return false;
+    }
+
+    // Launch interrupted by server restart before server creation: cannot be resumed (TeamCity user data lost)
+    private void dropInterruptedLaunch(@NotNull final OpenstackCloudInstance instance) {
+        LOG.info(String.format("Interrupted launch cleaned up, no server found for instance: %s", instance.getName()));
+        instance.setStatus(InstanceStatus.STOPPED);
+        forgetInstance(instance);
+        releaseFloatingIp(instance.getPendingFloatingIp());
+    }
+
+    private void restoreInstance(@NotNull final String instanceId, @NotNull final Server server) {
+        final OpenstackCloudInstance existing = instances.get(instanceId);
+        if (existing == null) {
+            // Add only if not already existing (sample: started at profile creation)
+            final OpenstackCloudInstance instance = new OpenstackCloudInstance(this, instanceId, serverPaths, executor, server);
+            addInstance(instance);
+            journal.launched(imageId, instanceId, instance.getStartedTime().getTime());
+            journal.serverCreated(imageId, instanceId, server.getId(), null);
+        } else if (existing.isRehydrated()) {
+            existing.resume(server);
+        }
+    }
+
+    private void restoreParked(@NotNull final String instanceId, @NotNull final Server server) {
+        if (!instances.containsKey(instanceId)) {
+            final Date updated = server.getUpdated() != null ? server.getUpdated() : server.getCreated();
+            // Floating ip kept associated while parked: reserved again, not handed out to another instance
+            final String floatingIp = autoFloatingIp ? getFloatingIp(server) : null;
+            if (floatingIp != null) {
+                floatingIpPool.restore(floatingIp);
+            }
+            LOG.info(String.format("Parked server restored: %s (floating ip: %s)", server.getName(), floatingIp));
+            for (OpenstackParkedServers.Parked evicted : parkedServers.park(new OpenstackParkedServers.Parked(instanceId, server.getId(), floatingIp,
+                    updated == null ? System.currentTimeMillis() : updated.getTime()))) {
+                deleteParked(evicted);
+            }
+        }
+    }
+
+    // Floating ip associated to a server, if any
+    @Nullable
+    private static String getFloatingIp(@NotNull final Server server) {
+        for (Address address : server.getAddresses().values()) {
+            if (FLOATING_ADDRESS_TYPE.equals(address.getType().orNull())) {
+                return address.getAddr();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Rehydrate an instance known from journal (previous server run), before any servers listing
+     *
+     * @param entry Journal entry
+     */
+    void rehydrateInstance(@NotNull final OpenstackInstanceJournal.Entry entry) {
+        if (autoFloatingIp && entry.getFloatingIp() != null) {
+            floatingIpPool.restore(entry.getFloatingIp());
+        }
+        addInstance(new OpenstackCloudInstance(this, entry.getInstanceId(), serverPaths, executor, entry));
+    }
+
+    /**
+     * Check if a server is owned by this image: from its metadata, or for servers created before metadata ownership, from its
+     * '&lt;image name&gt;-&lt;instance id&gt;' name
+     * 
+     * @param server Server
+     * @return true if owned
+     */
+    boolean isOwnerOf(@NotNull final Server server) {
+        final Map<String, String> metadata = server.getMetadata();
+        if (metadata.containsKey(OpenstackCloudParameters.SERVER_IMAGE_ID)) {
+            return imageId.equals(metadata.get(OpenstackCloudParameters.SERVER_IMAGE_ID))
+                    && profileId.equals(metadata.get(OpenstackCloudParameters.SERVER_PROFILE_ID));
+        }
+        final String name = server.getName();
+        final String prefix = getName() + "-";
+        return name != null && name.length() > prefix.length() && name.startsWith(prefix)
+                && name.substring(prefix.length()).chars().allMatch(Character::isDigit);
+    }
+
+    /**
+     * Metadata identifying a server as owned by this image (cf. {@link #isOwnerOf(Server)})
+     * 
+     * @param instanceId Instance id
+     * @return Metadata
+     */
+    @NotNull
+    Map<String, String> getOwnerMetadata(@NotNull final String instanceId) {
+        final Map<String, String> metadata = new HashMap<>();
+        metadata.put(OpenstackCloudParameters.SERVER_PROFILE_ID, profileId);
+        metadata.put(OpenstackCloudParameters.SERVER_IMAGE_ID, imageId);
+        metadata.put(OpenstackCloudParameters.SERVER_INSTANCE_ID, instanceId);
+        return metadata;
+    }
+
     @NotNull
-    public ServerApi getNovaServerApi() {
-        return openstackApi.getNovaServerApi();
+    public OpenstackApi getOpenstackApi() {
+        return openstackApi;
     }
 
-    public String getFloatingIpAvailable() {
-        return openstackApi.getFloatingIpAvailable();
+    @Nullable
+    public String reserveFloatingIp() {
+        return floatingIpPool.reserve();
+    }
+
+    @NotNull
+    public OpenstackServerLookup getServerLookup() {
+        return serverLookup;
+    }
+
+    public void releaseFloatingIp(@Nullable String ip) {
+        floatingIpPool.release(ip);
     }
 
     public void associateFloatingIp(String serverId, String ip) {
         openstackApi.associateFloatingIp(serverId, ip);
     }
 
+    private void addInstance(@NotNull final OpenstackCloudInstance instance) {
+        if (instances.putIfAbsent(instance.getInstanceId(), instance) == null) {
+            instancesCount.incrementAndGet();
+            instanceIndex.added(instance);
+        }
+    }
+
+    // OpenStack server id now known for the instance
+    void serverCreated(@NotNull final OpenstackCloudInstance instance, @Nullable final String floatingIp) {
+        if (instances.get(instance.getInstanceId()) == instance) {
+            instanceIndex.serverCreated(instance);
+            journal.serverCreated(imageId, instance.getInstanceId(), instance.getOpenstackInstanceId(), floatingIp);
+        }
+    }
+
     private void forgetInstance(@NotNull final OpenstackCloudInstance instance) {
-        instances.remove(instance.getInstanceId());
+        if (removeInstance(instance)) {
+            journal.removed(imageId, instance.getInstanceId());
+        }
+        // Floating ip (if any) not disassociated explicitly (server vanished or in error) only free again once listed as such by Neutron
+        // (kept associated to a parked server)
+        if (autoFloatingIp && !instance.isParked()) {
+            floatingIpPool.discard(instance.getNetworkIdentity());
+        }
+    }
+
+    // In memory only
+    private boolean removeInstance(@NotNull final OpenstackCloudInstance instance) {
+        if (instances.remove(instance.getInstanceId(), instance)) {
+            instancesCount.decrementAndGet();
+            instanceIndex.removed(instance);
+            return true;
+        }
+        return false;
+    }
+
+    public boolean isReuse() {
+        return reuse;
+    }
+
+    public boolean isRebuild() {
+        return rebuild;
+    }
+
+    public int getParkedCount() {
+        return parkedServers.size();
+    }
+
+    // Server of a terminated instance stopped, kept for reuse (least recently parked ones deleted if too many)
+    void park(@NotNull final OpenstackCloudInstance instance) {
+        // Forgotten first: its instance id is available for next start
+        forgetInstance(instance);
+        final OpenstackParkedServers.Parked parked = new OpenstackParkedServers.Parked(instance.getInstanceId(), instance.getOpenstackInstanceId(),
+                instance.getNetworkIdentity(), System.currentTimeMillis());
+        for (OpenstackParkedServers.Parked evicted : parkedServers.park(parked)) {
+            LOG.info(String.format("Parked server %s-%s evicted (too many parked servers)", getName(), evicted.getInstanceId()));
+            deleteParked(evicted);
+        }
+    }
+
+    // Parked server not started finally
+    void unpark(@NotNull final OpenstackParkedServers.Parked parked) {
+        for (OpenstackParkedServers.Parked evicted : parkedServers.park(parked)) {
+            deleteParked(evicted);
+        }
+    }
+
+    private void deleteParked(@NotNull final OpenstackParkedServers.Parked parked) {
+        reclaimFloatingIp(parked.getServerId(), parked.getFloatingIp());
+        try {
+            openstackApi.deleteServer(parked.getServerId());
+        } catch (RuntimeException e) {
+            LOG.warn(String.format("Parked server %s-%s cannot be deleted: %s", getName(), parked.getInstanceId(), e.getMessage()));
+        }
     }
 
+    /**
+     * Floating ip of a server to be deleted disassociated first, so it can be reserved again at once by a next launch (Nova frees it
+     * asynchronously otherwise); if disassociation fails, it is only free again once listed as such by Neutron
+     *
+     * @param serverId Server to be deleted
+     * @param ip Floating ip associated to the server (ignored if null)
+     */
+    void reclaimFloatingIp(@NotNull final String serverId, @Nullable final String ip) {
+        if (!autoFloatingIp || ip == null) {
+            return;
+        }
+        try {
+            openstackApi.disassociateFloatingIp(serverId, ip);
+            floatingIpPool.release(ip);
+        } catch (RuntimeException e) {
+            LOG.warn(String.format("Floating ip %s cannot be disassociated from server %s: %s", ip, serverId, e.getMessage()));
+            floatingIpPool.discard(ip);
+        }
+    }
+
+    /**
+     * Launch template of the image, compiled again only if image/flavor/network resolution or user script changed
+     * 
+     * @return Template
+     * @throws OpenstackException if image/flavor/network cannot be resolved, or user script is too large
+     * @throws IOException if user script cannot be read
+     */
     @NotNull
-    public CreateServerOptions getImageOptions() {
-        return options;
+    OpenstackLaunchTemplate getLaunchTemplate() throws OpenstackException, IOException {
+        final String openstackImageId = getOpenstackImageId();
+        if (StringUtil.isEmpty(openstackImageId)) {
+            throw new OpenstackException(String.format("No image can be found for name: %s", openstackImageName));
+        }
+        final String flavorId = getFlavorId();
+        if (StringUtil.isEmpty(flavorId)) {
+            throw new OpenstackException(String.format("No flavor can be found for name: %s", flavorName));
+        }
+        final List<String> networkIds = new ArrayList<>();
+        if (!StringUtil.isEmpty(networkName)) {
+            final String networkId = openstackApi.getNetworkIdByName(networkName);
+            if (StringUtil.isEmpty(networkId)) {
+                throw new OpenstackException(String.format("No network can be found for name: %s", networkName));
+            }
+            networkIds.add(networkId);
+        }
+        final byte[] userData = readUserScript();
+        OpenstackLaunchTemplate template = launchTemplate.get();
+        if (template == null || !template.matches(openstackImageId, flavorId, networkIds, userData)) {
+            template = new OpenstackLaunchTemplate(openstackImageId, flavorId, networkIds, options.getSecurityGroupNames(),
+                    options.getKeyPairName(), options.getAvailabilityZone(), userData);
+            launchTemplate.set(template);
+            LOG.debug(String.format("Launch template of openstack image %s: %s", getName(), template));
+        }
+        return template;
+    }
+
+    // User script is cached, but reloaded if changed, making it possible to change it without touching TeamCity
+    @Nullable
+    private byte[] readUserScript() throws IOException, OpenstackException {
+        return userScript == null ? null : userScript.getUserData();
+    }
+
+    /**
+     * Queue an instance launch
+     * 
+     * @param launch Launch command
+     * @throws java.util.concurrent.RejectedExecutionException if launch queue is full
+     */
+    void launch(@NotNull final Runnable launch) {
+        launchPipeline.submit(launch);
+    }
+
+    public int getLaunchQueueDepth() {
+        return launchPipeline.getQueueDepth();
+    }
+
+    boolean isLaunchQueueFull() {
+        return launchPipeline.isFull();
     }
 
     @NotNull
@@ -236,6 +612,10 @@ public class OpenstackCloudImage implements CloudImage {
         return Collections.unmodifiableCollection(instances.values());
     }
 
+    public int getInstancesCount() {
+        return instancesCount.get();
+    }
+
     @Nullable
     public OpenstackCloudInstance findInstanceById(@NotNull final String instanceId) {
         LOG.debug(String.format("findInstanceById(%s)", instanceId));
@@ -261,24 +641,162 @@ public class OpenstackCloudImage implements CloudImage {
     }
 
     @NotNull
-    public synchronized OpenstackCloudInstance startNewInstance(@NotNull final CloudInstanceUserData data) {
-        final String instanceId = getNextInstanceId();
-        final OpenstackCloudInstance instance = new OpenstackCloudInstance(this, instanceId, serverPaths, executor);
+    public OpenstackCloudInstance startNewInstance(@NotNull final CloudInstanceUserData data) {
+        demanded();
+        if (standby > 0) {
+            standbyUserData = data.serialize();
+            final OpenstackCloudInstance warm = takeStandbyInstance();
+            if (warm != null) {
+                LOG.info(String.format("Standby instance %s handed out (status: %s)", warm.getName(), warm.getStatus()));
+                return warm;
+            }
+        }
 
-        instances.put(instanceId, instance);
-        instance.start(data);
+        return launchInstance(data, false);
+    }
 
+    // New instance, from a parked server if any ('reuse' images), else from a new server
+    @NotNull
+    private OpenstackCloudInstance launchInstance(@NotNull final CloudInstanceUserData data, final boolean standbyInstance) {
+        final OpenstackParkedServers.Parked parked = reuse ? parkedServers.take() : null;
+        final String instanceId = parked == null ? getNextInstanceId() : parked.getInstanceId();
+        final OpenstackCloudInstance instance = new OpenstackCloudInstance(this, instanceId, serverPaths, executor);
+        if (standbyInstance) {
+            instance.markStandby();
+        }
+
+        addInstance(instance);
+        journal.launched(imageId, instanceId, instance.getStartedTime().getTime());
+        if (parked == null) {
+            instance.start(data);
+        } else {
+            instance.startParked(data, parked);
+        }
         return instance;
     }
 
+    public int getStandby() {
+        return standby;
+    }
+
+    // Launch requested, or build started on an instance of the image
+    void demanded() {
+        lastDemand = System.currentTimeMillis();
+    }
+
+    @NotNull
+    private List<OpenstackCloudInstance> getStandbyInstances() {
+        final List<OpenstackCloudInstance> standbyInstances = new ArrayList<>();
+        for (OpenstackCloudInstance instance : getInstances()) {
+            if (instance.isStandby() && STANDBY_STATUSES.contains(instance.getStatus())) {
+                standbyInstances.add(instance);
+            }
+        }
+        standbyInstances.sort(Comparator.comparingInt(instance -> STANDBY_STATUSES.indexOf(instance.getStatus())));
+        return standbyInstances;
+    }
+
+    /**
+     * @return true if an instance is starting or stopping (status polled faster)
+     */
+    public boolean hasInstancesInTransition() {
+        for (OpenstackCloudInstance instance : instances.values()) {
+            if (TRANSITION_STATUSES.contains(instance.getStatus())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return Count of standby instances (launching or idle) which can be handed out
+     */
+    public int getStandbyCount() {
+        return getStandbyInstances().size();
+    }
+
+    @Nullable
+    private OpenstackCloudInstance takeStandbyInstance() {
+        for (OpenstackCloudInstance instance : getStandbyInstances()) {
+            if (instance.take()) {
+                return instance;
+            }
+        }
+        return null;
+    }
+
+    private boolean isStandbyIdle() {
+        return System.currentTimeMillis() - lastDemand > TimeUnit.SECONDS
+                .toMillis(TeamCityProperties.getInteger(STANDBY_IDLE_KEY, STANDBY_IDLE_DEFAULT_VALUE));
+    }
+
+    /**
+     * Standby pool is armed by the first launch request (TeamCity user data required for agents), and kept while demand is recent
+     * 
+     * @return true if a standby instance should be started (instance cap not checked)
+     */
+    boolean needsStandbyInstance() {
+        return standby > 0 && standbyUserData != null && !isStandbyIdle() && !isStandbyBackoff() && !isLaunchQueueFull()
+                && getStandbyCount() < standby;
+    }
+
+    private synchronized boolean isStandbyBackoff() {
+        return System.currentTimeMillis() < standbyRetryTime;
+    }
+
+    // Standby instance launch failed (or its server in error): pool not replenished before an exponential backoff
+    synchronized void standbyFailed() {
+        final long backoff = TimeUnit.SECONDS.toMillis(TeamCityProperties.getInteger(STANDBY_BACKOFF_KEY, STANDBY_BACKOFF_DEFAULT_VALUE))
+                * Math.min(1 << Math.min(standbyFailures, 30), STANDBY_BACKOFF_MAX_FACTOR);
+        standbyFailures++;
+        standbyRetryTime = System.currentTimeMillis() + backoff;
+        LOG.warn(String.format("Standby instance launch failed for image %s, pool replenished again in %s ms", getName(), backoff));
+    }
+
+    // Standby instance started: backoff reset
+    synchronized void standbyStarted() {
+        standbyFailures = 0;
+        standbyRetryTime = 0;
+    }
+
+    void startStandbyInstance() {
+        final String userData = standbyUserData;
+        if (userData == null) {
+            return;
+        }
+        final OpenstackCloudInstance instance = launchInstance(CloudInstanceUserData.deserialize(userData), true);
+        LOG.info(String.format("Standby instance %s started (pool size: %s)", instance.getName(), standby));
+    }
+
+    /**
+     * No demand for a while: idle standby instances are taken out of the pool, to be terminated by caller (pool replenished again on next
+     * demand)
+     *
+     * @return Instances to terminate
+     */
+    @NotNull
+    List<OpenstackCloudInstance> trimStandby() {
+        final List<OpenstackCloudInstance> trimmed = new ArrayList<>();
+        if (standby == 0 || !isStandbyIdle()) {
+            return trimmed;
+        }
+        for (OpenstackCloudInstance instance : getStandbyInstances()) {
+            if (instance.getStatus() == InstanceStatus.RUNNING && instance.take()) {
+                LOG.info(String.format("Standby instance %s terminated, no demand for image %s", instance.getName(), getName()));
+                trimmed.add(instance);
+            }
+        }
+        return trimmed;
+    }
+
     void dispose() {
         LOG.debug(String.format("Dispose image %s (id=%s)", imageName, imageId));
-        instances.clear();
+        // Instances dropped in memory only: still live in journal, floating ips still reserved, for next profile instance
+        for (OpenstackCloudInstance instance : getInstances()) {
+            removeInstance(instance);
+        }
+        launchPipeline.dispose();
         executor.shutdown();
     }
 
-    private int getTeamCityProperty(String key, int defaultValue) {
-        return TeamCityProperties.getInteger(key, defaultValue);
-    }
-
 }
@@ -1,20 +1,20 @@
 package jetbrains.buildServer.clouds.openstack;
 
-import java.io.File;
-import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.jclouds.openstack.nova.v2_0.domain.Server;
 import org.jclouds.openstack.nova.v2_0.domain.ServerCreated;
-import org.jclouds.openstack.nova.v2_0.options.CreateServerOptions;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import com.google.common.base.Strings;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.text.StringUtil;
 
@@ -26,10 +26,22 @@ import jetbrains.buildServer.clouds.InstanceStatus;
 import jetbrains.buildServer.log.Loggers;
 import jetbrains.buildServer.serverSide.AgentDescription;
 import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
 import jetbrains.buildServer.util.ExceptionUtil;
-import jetbrains.buildServer.util.FileUtil;
 
 public class OpenstackCloudInstance implements CloudInstance {
+
+    public static final String FLOATING_IP_WAIT_KEY = "openstack.floatingip.wait";
+    public static final int FLOATING_IP_WAIT_DEFAULT_VALUE = 120;
+
+    private static final long FLOATING_IP_BACKOFF_INITIAL = 1000;
+    private static final long FLOATING_IP_BACKOFF_MAX = 16000;
+
+    // Parked server started again: still SHUTOFF for a while
+    private static final long PARKED_START_WAIT = TimeUnit.MINUTES.toMillis(5);
+    // Parked server rebuilt: still SHUTOFF until rebuild begins, then SHUTOFF again once rebuilt (stopped state kept by Nova)
+    private static final long REBUILD_BEGIN_WAIT = TimeUnit.SECONDS.toMillis(30);
+
     @NotNull
     private static final Logger LOG = Logger.getInstance(Loggers.CLOUD_CATEGORY_ROOT);
     @NotNull
@@ -46,9 +58,27 @@ public class OpenstackCloudInstance implements CloudInstance {
     private ServerCreated serverCreated;
     @NotNull
     private final ScheduledExecutorService executor;
-    private String ip;
+    private volatile String ip;
 
     private final AtomicReference<InstanceStatus> status = new AtomicReference<>(InstanceStatus.UNKNOWN);
+    private volatile long statusSince = System.currentTimeMillis();
+    @NotNull
+    private final OpenstackLaunchTimeline timeline = new OpenstackLaunchTimeline();
+    // Instance known from journal, not yet reconciled with its server
+    private volatile boolean rehydrated = false;
+    private long rehydratedTime = 0;
+    @Nullable
+    private String pendingFloatingIp;
+    // Started by standby pool, not yet handed out for a build
+    @NotNull
+    private final AtomicBoolean standby = new AtomicBoolean(false);
+    // Agent registered on TeamCity: server started, whatever its (possibly lagging) Nova status
+    private volatile boolean agentRegistered = false;
+    // Server kept stopped for reuse on termination, rather than deleted
+    private volatile boolean parked = false;
+    private volatile long parkedStartTime = 0;
+    private volatile long rebuildTime = 0;
+    private volatile boolean rebuildSeen = false;
 
     public OpenstackCloudInstance(@NotNull final OpenstackCloudImage image, @NotNull final String instanceId, @NotNull ServerPaths serverPaths,
             @NotNull ScheduledExecutorService executor) {
@@ -57,6 +87,7 @@ public class OpenstackCloudInstance implements CloudInstance {
         this.serverPaths = serverPaths;
         this.startDate = new Date();
         this.executor = executor;
+        timeline.record(OpenstackLaunchTimeline.Milestone.REQUESTED);
         setStatus(InstanceStatus.SCHEDULED_TO_START);
     }
 
@@ -73,6 +104,84 @@ public class OpenstackCloudInstance implements CloudInstance {
         LOG.info(String.format("Cloud openstack instance restored: %s", name));
     }
 
+    public OpenstackCloudInstance(@NotNull final OpenstackCloudImage image, @NotNull final String instanceId, @NotNull ServerPaths serverPaths,
+            @NotNull ScheduledExecutorService executor, @NotNull OpenstackInstanceJournal.Entry entry) {
+        this.cloudImage = image;
+        this.instanceId = instanceId;
+        this.serverPaths = serverPaths;
+        this.executor = executor;
+        this.startDate = new Date(entry.getStartTime());
+        this.rehydrated = true;
+        this.rehydratedTime = System.currentTimeMillis();
+        this.pendingFloatingIp = entry.getFloatingIp();
+        if (entry.getServerId() != null) {
+            this.serverCreated = ServerCreated.builder().id(entry.getServerId()).name(getName()).build();
+        } else {
+            // Launch interrupted by server restart, server possibly created: known once servers are listed
+            setStatus(InstanceStatus.SCHEDULED_TO_START);
+        }
+        LOG.info(String.format("Cloud openstack instance rehydrated from journal: %s", getName()));
+    }
+
+    void markStandby() {
+        standby.set(true);
+    }
+
+    public boolean isStandby() {
+        return standby.get();
+    }
+
+    /**
+     * Hand out the instance, if it is an available standby one
+     *
+     * @return true if instance was a standby one (now a regular instance)
+     */
+    boolean take() {
+        return standby.compareAndSet(true, false);
+    }
+
+    boolean isRehydrated() {
+        return rehydrated;
+    }
+
+    // Rehydration time (ms), 0 if not rehydrated from journal
+    long getRehydratedTime() {
+        return rehydratedTime;
+    }
+
+    // Floating ip reserved before server restart, association not yet checked
+    @Nullable
+    synchronized String getPendingFloatingIp() {
+        return pendingFloatingIp;
+    }
+
+    /**
+     * Reconcile an instance rehydrated from journal with its server: server adopted if its creation was not known, and floating ip
+     * association resumed if not done
+     *
+     * @param server Server of the instance
+     */
+    synchronized void resume(@NotNull final Server server) {
+        if (!rehydrated) {
+            return;
+        }
+        rehydrated = false;
+        if (serverCreated == null) {
+            serverCreated = ServerCreated.builder().id(server.getId()).name(server.getName()).diskConfig(server.getDiskConfig().orNull()).build();
+            cloudImage.serverCreated(this, pendingFloatingIp);
+            LOG.info(String.format("Interrupted launch resumed, server found for instance: %s", getName()));
+        }
+        final String floatingIp = pendingFloatingIp;
+        pendingFloatingIp = null;
+        if (floatingIp != null) {
+            if (server.getAddresses().values().stream().anyMatch(address -> floatingIp.equals(address.getAddr()))) {
+                ip = floatingIp;
+            } else {
+                executor.schedule(new AssociateFloatingIpCommand(server.getId(), floatingIp), 0, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
     public synchronized void updateStatus(Server.Status status) {
         try {
             LOG.debug(String.format("Set status for openstack instance %s: %s (previous was: %s)", getName(), status, getStatus()));
@@ -88,23 +197,54 @@ public class OpenstackCloudInstance implements CloudInstance {
             case UNKNOWN:
                 setStatus(InstanceStatus.UNKNOWN);
                 break;
-            case BUILD:
             case REBUILD:
-                setStatus(InstanceStatus.STARTING);
+                rebuildSeen = rebuildTime > 0;
+                timeline.record(OpenstackLaunchTimeline.Milestone.BUILD);
+                setStarting();
+                break;
+            case BUILD:
+                timeline.record(OpenstackLaunchTimeline.Milestone.BUILD);
+                setStarting();
                 break;
             case ACTIVE:
                 // When OpenStack instance is stopping, the status is always 'ACTIVE' => check if termination started
                 if (InstanceStatus.SCHEDULED_TO_STOP.equals(getStatus()) || InstanceStatus.STOPPING.equals(getStatus())) {
                     setStatus(InstanceStatus.STOPPING);
                 } else {
+                    timeline.record(OpenstackLaunchTimeline.Milestone.ACTIVE);
+                    parkedStartTime = 0;
+                    rebuildTime = 0;
                     setStatus(InstanceStatus.RUNNING);
+                    if (isStandby()) {
+                        cloudImage.standbyStarted();
+                    }
                 }
                 break;
             case ERROR:
+                if (isStandby() && !isStopping()) {
+                    cloudImage.standbyFailed();
+                }
                 terminate();
                 break;
             case SHUTOFF:
-                terminate();
+                if (rebuildTime > 0) {
+                    if (rebuildSeen || System.currentTimeMillis() - rebuildTime > REBUILD_BEGIN_WAIT) {
+                        // Rebuilt (or rebuild not observed between two updates), server to power on
+                        cloudImage.getOpenstackApi().startServer(getOpenstackInstanceId());
+                        rebuildTime = 0;
+                        rebuildSeen = false;
+                        parkedStartTime = System.currentTimeMillis();
+                    }
+                    setStatus(InstanceStatus.STARTING);
+                } else if (parkedStartTime > 0 && System.currentTimeMillis() - parkedStartTime < PARKED_START_WAIT) {
+                    // Parked server not yet powered on
+                    setStarting();
+                } else if (cloudImage.isReuse()
+                        && (InstanceStatus.SCHEDULED_TO_STOP.equals(getStatus()) || InstanceStatus.STOPPING.equals(getStatus()))) {
+                    park();
+                } else {
+                    terminate();
+                }
                 break;
             case DELETED:
             case SUSPENDED:
@@ -117,6 +257,9 @@ public class OpenstackCloudInstance implements CloudInstance {
                 setStatus(InstanceStatus.STOPPED);
                 break;
             }
+        } catch (final OpenstackRateLimiter.OverLimitException e) {
+            // Status kept, action done again on next status update
+            LOG.info(String.format("Status update of instance %s delayed: %s", getName(), e.getMessage()));
         } catch (final Exception e) {
             processError(e);
         }
@@ -134,7 +277,59 @@ public class OpenstackCloudInstance implements CloudInstance {
     }
 
     public void setStatus(@NotNull InstanceStatus status) {
-        this.status.set(status);
+        statusChanged(this.status.getAndSet(status), status);
+    }
+
+    // Status set only if still the expected one (concurrent stop not overwritten)
+    private boolean compareAndSetStatus(@NotNull final InstanceStatus expected, @NotNull final InstanceStatus status) {
+        if (!this.status.compareAndSet(expected, status)) {
+            return false;
+        }
+        statusChanged(expected, status);
+        return true;
+    }
+
+    private void statusChanged(@NotNull final InstanceStatus previous, @NotNull final InstanceStatus status) {
+        if (previous != status) {
+            // Time spent in launch stages, as 'instance.scheduled_to_start' and 'instance.starting'
+            final long now = System.currentTimeMillis();
+            if (previous == InstanceStatus.SCHEDULED_TO_START || previous == InstanceStatus.STARTING) {
+                OpenstackMetrics.getInstance().record("instance." + previous.name().toLowerCase(Locale.ENGLISH), now - statusSince);
+            }
+            statusSince = now;
+        }
+    }
+
+    /**
+     * Agent of the instance registered: instance running (if still starting), before its server status update
+     */
+    public void agentRegistered() {
+        if (getErrorInfo() != null) {
+            return;
+        }
+        // Atomic: a termination requested meanwhile is never overwritten
+        final InstanceStatus current = status.get();
+        if ((InstanceStatus.SCHEDULED_TO_START.equals(current) || InstanceStatus.STARTING.equals(current)
+                || InstanceStatus.UNKNOWN.equals(current)) && compareAndSetStatus(current, InstanceStatus.RUNNING)) {
+            LOG.debug(String.format("Agent of instance %s registered, instance running", getName()));
+            agentRegistered = true;
+        }
+    }
+
+    // Server status not yet up to date: instance kept running once its agent is registered
+    private void setStarting() {
+        if (!agentRegistered || !InstanceStatus.RUNNING.equals(getStatus())) {
+            setStatus(InstanceStatus.STARTING);
+        }
+    }
+
+    /**
+     * @return true if instance termination is requested or done
+     */
+    public boolean isStopping() {
+        final InstanceStatus current = getStatus();
+        return InstanceStatus.SCHEDULED_TO_STOP.equals(current) || InstanceStatus.STOPPING.equals(current)
+                || InstanceStatus.STOPPED.equals(current);
     }
 
     @NotNull
@@ -162,6 +357,11 @@ public class OpenstackCloudInstance implements CloudInstance {
         return startDate;
     }
 
+    @NotNull
+    public OpenstackLaunchTimeline getTimeline() {
+        return timeline;
+    }
+
     public String getNetworkIdentity() {
         return ip;
     }
@@ -180,7 +380,11 @@ public class OpenstackCloudInstance implements CloudInstance {
     public void start(@NotNull final CloudInstanceUserData data) {
         LOG.info(String.format("Starting cloud openstack instance %s", getName()));
         data.setAgentRemovePolicy(CloudConstants.AgentRemovePolicyValue.RemoveAgent);
-        executor.submit(ExceptionUtil.catchAll("start openstack cloud: " + this, new StartAgentCommand(data)));
+        try {
+            cloudImage.launch(ExceptionUtil.catchAll("start openstack cloud: " + this, new StartAgentCommand(data)));
+        } catch (final RejectedExecutionException e) {
+            processError(new OpenstackException(String.format("Launch queue of image %s is full, cancel instance start", cloudImage.getName())));
+        }
     }
 
     public void restart() {
@@ -192,60 +396,110 @@ public class OpenstackCloudInstance implements CloudInstance {
         setStatus(InstanceStatus.SCHEDULED_TO_STOP);
         try {
             if (serverCreated != null) {
-                cloudImage.getNovaServerApi().stop(serverCreated.getId());
+                cloudImage.getOpenstackApi().stopServer(serverCreated.getId());
             }
+        } catch (final OpenstackRateLimiter.OverLimitException e) {
+            LOG.info(String.format("Stop of instance %s delayed: %s", getName(), e.getMessage()));
+            executor.schedule(this::stop, e.getDelay(), TimeUnit.MILLISECONDS);
         } catch (final Exception e) {
             processError(e);
             setStatus(InstanceStatus.ERROR_CANNOT_STOP);
         }
     }
 
+    public boolean isParked() {
+        return parked;
+    }
+
+    // Stopped server kept for next instance start (floating ip, if any, kept associated)
+    private void park() {
+        LOG.info(String.format("Parking cloud openstack instance %s (server kept stopped for reuse)", getName()));
+        parked = true;
+        setStatus(InstanceStatus.STOPPED);
+        cloudImage.park(this);
+    }
+
+    /**
+     * Start the instance from a parked server of its image: server metadata (agent configuration) updated, then server started
+     * (or rebuilt from current image first, 'rebuild' images)
+     *
+     * @param data TeamCity user data
+     * @param server Parked server, named as this instance
+     */
+    public void startParked(@NotNull final CloudInstanceUserData data, @NotNull final OpenstackParkedServers.Parked server) {
+        LOG.info(String.format("Starting cloud openstack instance %s from parked server %s", getName(), server.getServerId()));
+        data.setAgentRemovePolicy(CloudConstants.AgentRemovePolicyValue.RemoveAgent);
+        try {
+            cloudImage.launch(ExceptionUtil.catchAll("start parked openstack server: " + this, new StartParkedCommand(data, server)));
+        } catch (final RejectedExecutionException e) {
+            cloudImage.unpark(server);
+            processError(new OpenstackException(String.format("Launch queue of image %s is full, cancel instance start", cloudImage.getName())));
+        }
+    }
+
     private void terminate() {
         LOG.info(String.format("Terminating cloud openstack instance %s", getName()));
         setStatus(InstanceStatus.STOPPED);
         try {
             if (serverCreated != null) {
-                cloudImage.getNovaServerApi().delete(serverCreated.getId());
+                cloudImage.reclaimFloatingIp(serverCreated.getId(), ip);
+                cloudImage.getOpenstackApi().deleteServer(serverCreated.getId());
             }
+        } catch (final OpenstackRateLimiter.OverLimitException e) {
+            // Terminated again on next status update
+            LOG.info(String.format("Termination of instance %s delayed: %s", getName(), e.getMessage()));
+            setStatus(InstanceStatus.STOPPING);
         } catch (final Exception e) {
             processError(e);
             setStatus(InstanceStatus.ERROR_CANNOT_STOP);
         }
     }
 
+    /**
+     * Launch not done because of OpenStack rate limit: queued again once its delay is elapsed (no thread waiting), a few times
+     *
+     * @return false if no more attempt
+     */
+    private boolean relaunch(@NotNull final Runnable launch, final int attempt, @NotNull final OpenstackRateLimiter.OverLimitException e) {
+        if (attempt > TeamCityProperties.getInteger(OpenstackRateLimiter.RATE_LIMIT_RETRIES_KEY, OpenstackRateLimiter.RATE_LIMIT_RETRIES_DEFAULT_VALUE)) {
+            return false;
+        }
+        LOG.info(String.format("Launch of instance %s delayed (attempt %s): %s", getName(), attempt, e.getMessage()));
+        executor.schedule(() -> {
+            try {
+                cloudImage.launch(ExceptionUtil.catchAll("relaunch openstack instance: " + this, launch));
+            } catch (final RejectedExecutionException r) {
+                processError(new OpenstackException(String.format("Launch queue of image %s is full, cancel instance start", cloudImage.getName())));
+            }
+        }, e.getDelay(), TimeUnit.MILLISECONDS);
+        return true;
+    }
+
     private void processError(@NotNull final Exception e) {
         final String message = e.getMessage();
         LOG.error(message, e);
         errorInfo = new CloudErrorInfo(message, message, e);
         setStatus(InstanceStatus.ERROR);
+        if (isStandby()) {
+            cloudImage.standbyFailed();
+        }
     }
 
     private class StartAgentCommand implements Runnable {
         private final CloudInstanceUserData userData;
+        private int attempts = 0;
 
         public StartAgentCommand(@NotNull final CloudInstanceUserData data) {
             this.userData = data;
         }
 
-        private byte[] readUserScriptFile(File userScriptFile) throws IOException {
-            try {
-                String userScript = FileUtil.readText(userScriptFile);
-                // this is userScript actually, but CreateServerOptionscalls it userData
-                return userScript.trim().getBytes(StandardCharsets.UTF_8);
-            } catch (IOException e) {
-                throw new IOException(String.format("Error in reading user script: %s", e.getMessage()), e);
-            }
-        }
-
         public void run() {
+            String floatingIp = null;
             try {
-                String floatingIp = null;
                 if (cloudImage.isAutoFloatingIp()) {
-                    // Floating ip should be in meta-data before instance start
-                    // If multiple instances start in parallel, perhaps same ip could be retrieved
-                    // So an ip reservation mechanism should implemented in this case
-                    LOG.debug("Retrieve floating ip for future instance association");
-                    floatingIp = cloudImage.getFloatingIpAvailable();
+                    // Floating ip should be in meta-data before instance start, reserved for this instance only
+                    LOG.debug("Reserve floating ip for future instance association");
+                    floatingIp = cloudImage.reserveFloatingIp();
                     if (StringUtil.isEmpty(floatingIp)) {
                         throw new OpenstackException("Floating ip could not be found, cancel instance start");
                     }
@@ -253,45 +507,151 @@ public class OpenstackCloudInstance implements CloudInstance {
                     userData.addAgentConfigurationParameter(OpenstackCloudParameters.AGENT_CLOUD_IP, floatingIp);
                 }
 
-                String openstackImageId = cloudImage.getOpenstackImageId();
-                if (StringUtil.isEmpty(openstackImageId)) {
-                    throw new OpenstackException(String.format("No image can be found for name: %s", cloudImage.getOpenstackImageName()));
+                final OpenstackLaunchTemplate template = cloudImage.getLaunchTemplate();
+                final Map<String, String> metadata = new HashMap<>(userData.getCustomAgentConfigurationParameters());
+                metadata.putAll(cloudImage.getOwnerMetadata(instanceId));
+
+                LOG.debug(String.format("Creating openstack instance %s with template: %s", getName(), template));
+                timeline.record(OpenstackLaunchTimeline.Milestone.CREATE_SENT);
+                serverCreated = cloudImage.getOpenstackApi().createServer(getName(), template.getOpenstackImageId(), template.getFlavorId(),
+                        template.createServerOptions(metadata));
+                timeline.record(OpenstackLaunchTimeline.Milestone.SERVER_CREATED);
+                cloudImage.serverCreated(OpenstackCloudInstance.this, floatingIp);
+
+                if (cloudImage.isAutoFloatingIp()) {
+                    // Associating floating IP requires fixed IP, waited without holding the executor thread
+                    executor.schedule(new AssociateFloatingIpCommand(serverCreated.getId(), floatingIp), FLOATING_IP_BACKOFF_INITIAL,
+                            TimeUnit.MILLISECONDS);
                 }
-                String flavorId = cloudImage.getFlavorId();
-                CreateServerOptions options = cloudImage.getImageOptions();
-                options.metadata(userData.getCustomAgentConfigurationParameters());
-
-                // TODO: that code should be in OpenstackCloudImage but as we make it possible to change userScript without touching teamcity, that
-                // hack takes place, sorry
-                String userScriptPath = cloudImage.getUserScriptPath();
-                if (!Strings.isNullOrEmpty(userScriptPath)) {
-                    File pluginData = serverPaths.getPluginDataDirectory();
-                    File userScriptFile = new File(new File(pluginData, OpenstackCloudParameters.PLUGIN_SHORT_NAME), userScriptPath);
-                    options.userData(readUserScriptFile(userScriptFile)).configDrive(true);
+
+                setStatus(InstanceStatus.STARTING);
+            } catch (final OpenstackRateLimiter.OverLimitException e) {
+                cloudImage.releaseFloatingIp(floatingIp);
+                if (!relaunch(this, ++attempts, e)) {
+                    processError(e);
                 }
+            } catch (final Exception e) {
+                // Floating ip not associated, available for other instances
+                cloudImage.releaseFloatingIp(floatingIp);
+                processError(e);
+            }
+        }
+    }
 
-                LOG.debug(String.format("Creating openstack instance with flavorId=%s, imageId=%s, options=%s", flavorId, openstackImageId, options));
-                serverCreated = cloudImage.getNovaServerApi().create(getName(), openstackImageId, flavorId, options);
+    private class StartParkedCommand implements Runnable {
+        private final CloudInstanceUserData userData;
+        private final OpenstackParkedServers.Parked server;
+        private int attempts = 0;
 
-                if (cloudImage.isAutoFloatingIp()) {
-                    LOG.debug(String.format("Associating floating ip to serverId %s", serverCreated.getId()));
-                    // Associating floating IP. Require fixed IP so wait until found
-                    final long maxWait = 120000;
-                    final long beginWait = System.currentTimeMillis();
-                    while (cloudImage.getNovaServerApi().get(serverCreated.getId()).getAddresses().isEmpty()) {
-                        if (System.currentTimeMillis() > (beginWait + maxWait)) {
-                            throw new OpenstackException(String.format("Waiting fixed ip fails, taking more than %s ms", maxWait));
-                        }
-                        LOG.debug(String.format("(Waiting fixed ip before floating ip association on serverId: %s)", serverCreated.getId()));
-                        Thread.sleep(1000);
-                    }
-                    cloudImage.associateFloatingIp(serverCreated.getId(), floatingIp);
-                    ip = floatingIp;
+        public StartParkedCommand(@NotNull final CloudInstanceUserData data, @NotNull final OpenstackParkedServers.Parked server) {
+            this.userData = data;
+            this.server = server;
+        }
+
+        public void run() {
+            try {
+                if (server.getFloatingIp() != null) {
+                    // Still associated while server was stopped
+                    userData.addAgentConfigurationParameter(OpenstackCloudParameters.AGENT_CLOUD_IP, server.getFloatingIp());
                 }
+                final Map<String, String> metadata = new HashMap<>(userData.getCustomAgentConfigurationParameters());
+                metadata.putAll(cloudImage.getOwnerMetadata(instanceId));
+
+                timeline.record(OpenstackLaunchTimeline.Milestone.CREATE_SENT);
+                cloudImage.getOpenstackApi().setServerMetadata(server.getServerId(), metadata);
+                if (cloudImage.isRebuild()) {
+                    // Fresh disk from current image, server (ports, fixed and floating ips) kept; started once rebuilt
+                    rebuildTime = System.currentTimeMillis();
+                    cloudImage.getOpenstackApi().rebuildServer(server.getServerId(), cloudImage.getLaunchTemplate().getOpenstackImageId(), getName());
+                } else {
+                    parkedStartTime = System.currentTimeMillis();
+                    cloudImage.getOpenstackApi().startServer(server.getServerId());
+                }
+                serverCreated = ServerCreated.builder().id(server.getServerId()).name(getName()).build();
+                ip = server.getFloatingIp();
+                timeline.record(OpenstackLaunchTimeline.Milestone.SERVER_CREATED);
+                cloudImage.serverCreated(OpenstackCloudInstance.this, server.getFloatingIp());
 
                 setStatus(InstanceStatus.STARTING);
+            } catch (final OpenstackRateLimiter.OverLimitException e) {
+                // Parked server kept for this instance
+                parkedStartTime = 0;
+                rebuildTime = 0;
+                if (!relaunch(this, ++attempts, e)) {
+                    cloudImage.unpark(server);
+                    processError(e);
+                }
+            } catch (final Exception e) {
+                // Server still stopped, available again (forgotten on next status update if it does not exist anymore)
+                parkedStartTime = 0;
+                rebuildTime = 0;
+                cloudImage.unpark(server);
+                processError(e);
+            }
+        }
+    }
+
+    /**
+     * Associate floating ip as soon as the server has a fixed ip; each check not satisfied is rescheduled with exponential backoff (no
+     * thread held while waiting)
+     */
+    private class AssociateFloatingIpCommand implements Runnable {
+        private final String serverId;
+        private final String floatingIp;
+        private final long beginWait = System.currentTimeMillis();
+        private long backoff = FLOATING_IP_BACKOFF_INITIAL;
+
+        public AssociateFloatingIpCommand(@NotNull final String serverId, @NotNull final String floatingIp) {
+            this.serverId = serverId;
+            this.floatingIp = floatingIp;
+            cloudImage.getServerLookup().waiting(serverId);
+        }
+
+        public void run() {
+            boolean waiting = false;
+            try {
+                if (InstanceStatus.SCHEDULED_TO_STOP.equals(getStatus()) || InstanceStatus.STOPPING.equals(getStatus())
+                        || InstanceStatus.STOPPED.equals(getStatus())) {
+                    LOG.debug(String.format("Instance stopped before floating ip association: %s", getName()));
+                    cloudImage.releaseFloatingIp(floatingIp);
+                    return;
+                }
+                // Coalesced with the fixed ip waits of the other launches of the image
+                final Server server = cloudImage.getServerLookup().get(serverId);
+                if (server == null || server.getAddresses().isEmpty()) {
+                    final long maxWait = TimeUnit.SECONDS.toMillis(TeamCityProperties.getInteger(FLOATING_IP_WAIT_KEY, FLOATING_IP_WAIT_DEFAULT_VALUE));
+                    if (System.currentTimeMillis() > (beginWait + maxWait)) {
+                        throw new OpenstackException(String.format("Waiting fixed ip fails, taking more than %s ms", maxWait));
+                    }
+                    LOG.debug(String.format("(Waiting fixed ip before floating ip association on serverId: %s, next check in %s ms)", serverId,
+                            backoff));
+                    executor.schedule(this, backoff, TimeUnit.MILLISECONDS);
+                    backoff = Math.min(backoff * 2, FLOATING_IP_BACKOFF_MAX);
+                    waiting = true;
+                    return;
+                }
+                timeline.record(OpenstackLaunchTimeline.Milestone.FIXED_IP);
+                LOG.debug(String.format("Associating floating ip to serverId %s", serverId));
+                cloudImage.associateFloatingIp(serverId, floatingIp);
+                ip = floatingIp;
+                timeline.record(OpenstackLaunchTimeline.Milestone.FLOATING_IP);
+            } catch (final OpenstackRateLimiter.OverLimitException e) {
+                final long maxWait = TimeUnit.SECONDS.toMillis(TeamCityProperties.getInteger(FLOATING_IP_WAIT_KEY, FLOATING_IP_WAIT_DEFAULT_VALUE));
+                if (System.currentTimeMillis() + e.getDelay() > beginWait + maxWait) {
+                    cloudImage.releaseFloatingIp(floatingIp);
+                    processError(e);
+                } else {
+                    LOG.info(String.format("Floating ip association of instance %s delayed: %s", getName(), e.getMessage()));
+                    executor.schedule(this, e.getDelay(), TimeUnit.MILLISECONDS);
+                    waiting = true;
+                }
             } catch (final Exception e) {
+                cloudImage.releaseFloatingIp(floatingIp);
                 processError(e);
+            } finally {
+                if (!waiting) {
+                    cloudImage.getServerLookup().done(serverId);
+                }
             }
         }
     }
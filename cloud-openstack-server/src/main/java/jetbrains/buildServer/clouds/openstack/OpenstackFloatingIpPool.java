@@ -0,0 +1,105 @@
+package jetbrains.buildServer.clouds.openstack;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import com.intellij.openapi.diagnostic.Logger;
+
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+
+/**
+ * Floating IPs available for the instances of a profile.<br/>
+ * The free (not associated) IPs are prefetched from Neutron in one listing, then each IP is reserved by one launch only, so parallel launches
+ * never associate a same IP. A reservation is released if the launch fails, and the IP of a terminated instance is reclaimed in the free list
+ * once disassociated from its server.
+ */
+public class OpenstackFloatingIpPool {
+
+    public static final String FLOATING_IP_TTL_KEY = "openstack.floatingip.ttl";
+    public static final int FLOATING_IP_TTL_DEFAULT_VALUE = 60;
+
+    @NotNull
+    private static final Logger LOG = Logger.getInstance(Loggers.CLOUD_CATEGORY_ROOT);
+    @NotNull
+    private final OpenstackApi openstackApi;
+    @NotNull
+    private final Deque<String> free = new ArrayDeque<>();
+    @NotNull
+    private final Set<String> reserved = new HashSet<>();
+    private long prefetchTime = 0;
+
+    public OpenstackFloatingIpPool(@NotNull final OpenstackApi openstackApi) {
+        this.openstackApi = openstackApi;
+    }
+
+    /**
+     * Reserve a free floating IP (Neutron is listed only if no free IP is known, or if the known ones are too old)
+     *
+     * @return Floating IP, null if none available
+     */
+    @Nullable
+    public synchronized String reserve() {
+        if (free.isEmpty() || System.currentTimeMillis() - prefetchTime > TimeUnit.SECONDS
+                .toMillis(TeamCityProperties.getInteger(FLOATING_IP_TTL_KEY, FLOATING_IP_TTL_DEFAULT_VALUE))) {
+            prefetch();
+        }
+        final String ip = free.poll();
+        if (ip != null) {
+            reserved.add(ip);
+        }
+        LOG.debug(String.format("Floating ip reserved: %s (%s still free)", ip, free.size()));
+        return ip;
+    }
+
+    /**
+     * Release a reserved floating IP (launch failure, or instance terminated), making it available again for next launches
+     *
+     * @param ip Floating IP (ignored if null or not reserved)
+     */
+    public synchronized void release(@Nullable final String ip) {
+        if (ip != null && reserved.remove(ip)) {
+            free.addFirst(ip);
+            LOG.debug(String.format("Floating ip released: %s", ip));
+        }
+    }
+
+    /**
+     * Drop the reservation of a floating IP possibly still associated (server deleted, disassociation not confirmed): not reserved again
+     * before a next prefetch lists it as free
+     *
+     * @param ip Floating IP (ignored if null)
+     */
+    public synchronized void discard(@Nullable final String ip) {
+        if (ip != null && reserved.remove(ip)) {
+            LOG.debug(String.format("Floating ip discarded: %s", ip));
+        }
+    }
+
+    /**
+     * Keep reserved a floating IP of an instance known before server restart (association possibly not yet done)
+     *
+     * @param ip Floating IP
+     */
+    public synchronized void restore(@NotNull final String ip) {
+        free.remove(ip);
+        reserved.add(ip);
+    }
+
+    private void prefetch() {
+        free.clear();
+        for (String ip : openstackApi.listFloatingIpsAvailable()) {
+            if (!reserved.contains(ip)) {
+                free.add(ip);
+            }
+        }
+        prefetchTime = System.currentTimeMillis();
+    }
+
+}
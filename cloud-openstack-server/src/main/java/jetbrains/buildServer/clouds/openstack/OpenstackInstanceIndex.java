@@ -0,0 +1,50 @@
+package jetbrains.buildServer.clouds.openstack;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Instances of all the images of a profile: live instances count, and instances by OpenStack server id (agent matching), both updated by
+ * images as their instances are added, created on OpenStack side, or removed.
+ */
+public class OpenstackInstanceIndex {
+
+    @NotNull
+    private final Map<String, OpenstackCloudInstance> byServerId = new ConcurrentHashMap<>();
+    @NotNull
+    private final AtomicInteger count = new AtomicInteger();
+
+    void added(@NotNull final OpenstackCloudInstance instance) {
+        count.incrementAndGet();
+        serverCreated(instance);
+    }
+
+    void serverCreated(@NotNull final OpenstackCloudInstance instance) {
+        final String serverId = instance.getOpenstackInstanceId();
+        if (!serverId.isEmpty()) {
+            byServerId.put(serverId, instance);
+        }
+    }
+
+    void removed(@NotNull final OpenstackCloudInstance instance) {
+        count.decrementAndGet();
+        final String serverId = instance.getOpenstackInstanceId();
+        if (!serverId.isEmpty()) {
+            byServerId.remove(serverId, instance);
+        }
+    }
+
+    @Nullable
+    public OpenstackCloudInstance findByServerId(@Nullable final String serverId) {
+        return serverId == null ? null : byServerId.get(serverId);
+    }
+
+    public int getCount() {
+        return count.get();
+    }
+
+}
@@ -0,0 +1,301 @@
+package jetbrains.buildServer.clouds.openstack;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.intellij.openapi.diagnostic.Logger;
+
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+
+/**
+ * Append-only journal of the instances state transitions of a profile (launch requested, server created, instance removed), one JSON record
+ * per line, so a restarted server knows its instances (and their in-flight launches) without waiting a full servers listing.<br/>
+ * The journal is compacted (rewritten with live instances only) when loaded, and once enough records have been appended. Journal is best
+ * effort: an I/O failure is logged, never failing an instance operation.
+ */
+public class OpenstackInstanceJournal {
+
+    public static final String JOURNAL_COMPACTION_KEY = "openstack.journal.compaction";
+    public static final int JOURNAL_COMPACTION_DEFAULT_VALUE = 1000;
+
+    public static final String JOURNAL_RECONCILE_TIMEOUT_KEY = "openstack.journal.reconcile.timeout";
+    public static final int JOURNAL_RECONCILE_TIMEOUT_DEFAULT_VALUE = 600;
+
+    private static final String LAUNCHED = "launched";
+    private static final String CREATED = "created";
+    private static final String REMOVED = "removed";
+
+    @NotNull
+    private static final Logger LOG = Logger.getInstance(Loggers.CLOUD_CATEGORY_ROOT);
+    @NotNull
+    private static final Gson GSON = new Gson();
+
+    /**
+     * Instance state, as known from journal
+     */
+    public static final class Entry {
+        private String op;
+        private String image;
+        private String instance;
+        private String server;
+        private String ip;
+        private long time;
+
+        private Entry() {
+            // Gson
+        }
+
+        private Entry(@NotNull final String op, @NotNull final String image, @NotNull final String instance) {
+            this.op = op;
+            this.image = image;
+            this.instance = instance;
+        }
+
+        @NotNull
+        public String getImageId() {
+            return image;
+        }
+
+        @NotNull
+        public String getInstanceId() {
+            return instance;
+        }
+
+        /**
+         * @return OpenStack server id, null if launch was not completed (server creation not known)
+         */
+        @Nullable
+        public String getServerId() {
+            return server;
+        }
+
+        /**
+         * @return Floating ip reserved for the instance, if any
+         */
+        @Nullable
+        public String getFloatingIp() {
+            return ip;
+        }
+
+        /**
+         * @return Launch request time (ms)
+         */
+        public long getStartTime() {
+            return time;
+        }
+    }
+
+    // Journal opened per file: the one of a previous profile instance (profile update) closed when the next one is opened
+    @NotNull
+    private static final Map<File, OpenstackInstanceJournal> OPENED = new HashMap<>();
+
+    @NotNull
+    private final File file;
+    @NotNull
+    private final Map<String, Entry> live = new LinkedHashMap<>();
+    @Nullable
+    private Writer writer;
+    private int appended = 0;
+    private boolean closed = false;
+
+    /**
+     * @param file Journal file (directory created if needed)
+     */
+    public OpenstackInstanceJournal(@NotNull final File file) {
+        this.file = file;
+    }
+
+    /**
+     * Open the journal of a profile: the journal previously opened on the same file (profile instance being replaced, possibly not yet
+     * disposed) is closed first, so that it never appends to the file loaded and compacted by the new one
+     *
+     * @param file Journal file (directory created if needed)
+     * @return Journal
+     */
+    @NotNull
+    public static OpenstackInstanceJournal open(@NotNull final File file) {
+        final OpenstackInstanceJournal journal = new OpenstackInstanceJournal(file);
+        final OpenstackInstanceJournal previous;
+        synchronized (OPENED) {
+            previous = OPENED.put(file.getAbsoluteFile(), journal);
+        }
+        if (previous != null) {
+            previous.close();
+        }
+        return journal;
+    }
+
+    /**
+     * Replay the journal, then compact it
+     *
+     * @return Live instances (not removed) of previous server run
+     */
+    @NotNull
+    public synchronized Collection<Entry> load() {
+        live.clear();
+        if (file.isFile()) {
+            try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.trim().isEmpty()) {
+                        replay(line);
+                    }
+                }
+            } catch (IOException e) {
+                LOG.warn(String.format("Instances journal cannot be read: %s: %s", file, e.getMessage()), e);
+            }
+        }
+        compact();
+        return new ArrayList<>(live.values());
+    }
+
+    private void replay(@NotNull final String line) {
+        final Entry record;
+        try {
+            record = GSON.fromJson(line, Entry.class);
+        } catch (JsonParseException e) {
+            // Last line not completely written (server killed)
+            LOG.warn(String.format("Instances journal record ignored: %s", line));
+            return;
+        }
+        if (record == null || record.op == null || record.image == null || record.instance == null) {
+            return;
+        }
+        apply(record);
+    }
+
+    private void apply(@NotNull final Entry record) {
+        final String key = record.image + '/' + record.instance;
+        if (REMOVED.equals(record.op)) {
+            live.remove(key);
+            return;
+        }
+        final Entry entry = live.computeIfAbsent(key, k -> new Entry(LAUNCHED, record.image, record.instance));
+        if (LAUNCHED.equals(record.op)) {
+            entry.time = record.time;
+        } else if (CREATED.equals(record.op)) {
+            entry.server = record.server;
+            entry.ip = record.ip;
+        }
+    }
+
+    /**
+     * Instance launch requested (or existing server restored)
+     */
+    public void launched(@NotNull final String imageId, @NotNull final String instanceId, final long startTime) {
+        final Entry record = new Entry(LAUNCHED, imageId, instanceId);
+        record.time = startTime;
+        append(record);
+    }
+
+    /**
+     * Instance server created by OpenStack
+     */
+    public void serverCreated(@NotNull final String imageId, @NotNull final String instanceId, @NotNull final String serverId,
+            @Nullable final String floatingIp) {
+        final Entry record = new Entry(CREATED, imageId, instanceId);
+        record.server = serverId;
+        record.ip = floatingIp;
+        append(record);
+    }
+
+    /**
+     * Instance terminated, or launch abandoned
+     */
+    public void removed(@NotNull final String imageId, @NotNull final String instanceId) {
+        append(new Entry(REMOVED, imageId, instanceId));
+    }
+
+    private synchronized void append(@NotNull final Entry record) {
+        if (closed) {
+            // Profile disposed (or updated): instances stay live for next profile instance
+            return;
+        }
+        apply(record);
+        try {
+            if (writer == null) {
+                Files.createDirectories(file.getParentFile().toPath());
+                writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            writer.write(GSON.toJson(record));
+            writer.write('\n');
+            writer.flush();
+        } catch (IOException e) {
+            LOG.warn(String.format("Instances journal cannot be written: %s: %s", file, e.getMessage()), e);
+        }
+        if (++appended >= Math.max(1, TeamCityProperties.getInteger(JOURNAL_COMPACTION_KEY, JOURNAL_COMPACTION_DEFAULT_VALUE))) {
+            compact();
+        }
+    }
+
+    // Rewrite the journal with live instances only (one record each), replacing the old one atomically
+    private void compact() {
+        closeWriter();
+        appended = 0;
+        final File compacted = new File(file.getPath() + ".tmp");
+        try {
+            Files.createDirectories(file.getParentFile().toPath());
+            try (Writer out = Files.newBufferedWriter(compacted.toPath(), StandardCharsets.UTF_8)) {
+                for (Entry entry : live.values()) {
+                    final Entry launched = new Entry(LAUNCHED, entry.image, entry.instance);
+                    launched.time = entry.time;
+                    out.write(GSON.toJson(launched));
+                    out.write('\n');
+                    if (entry.server != null) {
+                        final Entry created = new Entry(CREATED, entry.image, entry.instance);
+                        created.server = entry.server;
+                        created.ip = entry.ip;
+                        out.write(GSON.toJson(created));
+                        out.write('\n');
+                    }
+                }
+            }
+            Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            LOG.debug(String.format("Instances journal compacted: %s (%s instances)", file, live.size()));
+        } catch (IOException e) {
+            LOG.warn(String.format("Instances journal cannot be compacted: %s: %s", file, e.getMessage()), e);
+        }
+    }
+
+    private void closeWriter() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                LOG.debug(String.format("Instances journal cannot be closed: %s", e.getMessage()));
+            }
+            writer = null;
+        }
+    }
+
+    /**
+     * Stop journaling: next records are ignored (instances of a disposed profile are still live for the next one)
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            closeWriter();
+        }
+        synchronized (OPENED) {
+            OPENED.remove(file.getAbsoluteFile(), this);
+        }
+    }
+
+}
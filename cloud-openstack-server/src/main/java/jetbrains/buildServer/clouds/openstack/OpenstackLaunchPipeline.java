@@ -0,0 +1,193 @@
+package jetbrains.buildServer.clouds.openstack;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.jetbrains.annotations.NotNull;
+
+import com.intellij.openapi.diagnostic.Logger;
+
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+
+/**
+ * Instances launches of an image, run on the shared scheduler workers in a launch partition of its profile (apart from status updates).<br/>
+ * Launches run in parallel up to a count per image, and up to a count for the whole profile; pending launches are kept in a bounded queue
+ * per image. A launch is dispatched to a worker only once both counts allow it, so no worker waits a permit, and threads count depends
+ * neither on images nor on profiles count.
+ */
+public class OpenstackLaunchPipeline {
+
+    public static final String LAUNCH_IMAGE_PARALLELISM_KEY = "openstack.launch.image.parallelism";
+    public static final int LAUNCH_IMAGE_PARALLELISM_DEFAULT_VALUE = 4;
+
+    public static final String LAUNCH_PROFILE_PARALLELISM_KEY = "openstack.launch.profile.parallelism";
+    public static final int LAUNCH_PROFILE_PARALLELISM_DEFAULT_VALUE = 10;
+
+    public static final String LAUNCH_QUEUE_KEY = "openstack.launch.queue";
+    public static final int LAUNCH_QUEUE_DEFAULT_VALUE = 100;
+
+    @NotNull
+    private static final Logger LOG = Logger.getInstance(Loggers.CLOUD_CATEGORY_ROOT);
+    @NotNull
+    private final Dispatcher dispatcher;
+    private final int parallelism;
+    private final int capacity;
+    // Guarded by dispatcher
+    @NotNull
+    private final Queue<Launch> queue = new ArrayDeque<>();
+    private int inFlight = 0;
+    private boolean disposed = false;
+
+    /**
+     * @param imageName Image name
+     * @param dispatcher Launch partition shared by all images of the profile (cf. {@link #createDispatcher(String)})
+     */
+    public OpenstackLaunchPipeline(@NotNull final String imageName, @NotNull final Dispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+        this.parallelism = Math.max(1, TeamCityProperties.getInteger(LAUNCH_IMAGE_PARALLELISM_KEY, LAUNCH_IMAGE_PARALLELISM_DEFAULT_VALUE));
+        this.capacity = Math.max(1, TeamCityProperties.getInteger(LAUNCH_QUEUE_KEY, LAUNCH_QUEUE_DEFAULT_VALUE));
+        dispatcher.add(this);
+    }
+
+    @NotNull
+    public static Dispatcher createDispatcher(@NotNull final String profileId) {
+        return new Dispatcher(profileId,
+                Math.max(1, TeamCityProperties.getInteger(LAUNCH_PROFILE_PARALLELISM_KEY, LAUNCH_PROFILE_PARALLELISM_DEFAULT_VALUE)));
+    }
+
+    /**
+     * Queue a launch
+     *
+     * @param launch Launch command
+     * @throws RejectedExecutionException if queue is full (or pipeline disposed)
+     */
+    public void submit(@NotNull final Runnable launch) {
+        synchronized (dispatcher) {
+            if (disposed || queue.size() >= capacity) {
+                throw new RejectedExecutionException("Launch queue is full");
+            }
+            queue.add(new Launch(launch));
+            dispatcher.drain();
+        }
+    }
+
+    /**
+     * @return Count of launches waiting a thread
+     */
+    public int getQueueDepth() {
+        synchronized (dispatcher) {
+            return queue.size();
+        }
+    }
+
+    /**
+     * @return true if no more launch can be queued
+     */
+    public boolean isFull() {
+        synchronized (dispatcher) {
+            return queue.size() >= capacity;
+        }
+    }
+
+    public void dispose() {
+        synchronized (dispatcher) {
+            disposed = true;
+            queue.clear();
+            dispatcher.remove(this);
+        }
+    }
+
+    private static final class Launch {
+        @NotNull
+        private final Runnable command;
+        private final long queued = System.currentTimeMillis();
+
+        private Launch(@NotNull final Runnable command) {
+            this.command = command;
+        }
+    }
+
+    /**
+     * Launch partition of a profile: launches of its images dispatched in turn (one image cannot starve the others), while the profile
+     * parallelism allows it
+     */
+    public static final class Dispatcher {
+
+        @NotNull
+        private final ScheduledExecutorService executor;
+        private final int parallelism;
+        // Guarded by this
+        @NotNull
+        private final List<OpenstackLaunchPipeline> pipelines = new ArrayList<>();
+        private int running = 0;
+        private int next = 0;
+
+        private Dispatcher(@NotNull final String profileId, final int parallelism) {
+            this.parallelism = parallelism;
+            // Never more tasks submitted than parallelism: no queuing on partition side
+            this.executor = OpenstackScheduler.getInstance().createProfile(profileId, parallelism).createExecutorService("launch");
+        }
+
+        private synchronized void add(@NotNull final OpenstackLaunchPipeline pipeline) {
+            pipelines.add(pipeline);
+        }
+
+        private synchronized void remove(@NotNull final OpenstackLaunchPipeline pipeline) {
+            pipelines.remove(pipeline);
+        }
+
+        // Caller holds the lock
+        private void drain() {
+            while (running < parallelism) {
+                OpenstackLaunchPipeline pipeline = null;
+                for (int i = 0; i < pipelines.size() && pipeline == null; i++) {
+                    final OpenstackLaunchPipeline candidate = pipelines.get((next + i) % pipelines.size());
+                    if (!candidate.queue.isEmpty() && candidate.inFlight < candidate.parallelism) {
+                        pipeline = candidate;
+                        next = (next + i + 1) % pipelines.size();
+                    }
+                }
+                if (pipeline == null) {
+                    return;
+                }
+                final Launch launch = pipeline.queue.poll();
+                running++;
+                pipeline.inFlight++;
+                dispatch(pipeline, launch);
+            }
+        }
+
+        private void dispatch(@NotNull final OpenstackLaunchPipeline pipeline, @NotNull final Launch launch) {
+            OpenstackMetrics.getInstance().record("launch.wait", System.currentTimeMillis() - launch.queued);
+            try {
+                executor.execute(() -> {
+                    try {
+                        launch.command.run();
+                    } finally {
+                        done(pipeline);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                LOG.warn("Launch cancelled, profile disposed");
+                running--;
+                pipeline.inFlight--;
+            }
+        }
+
+        private synchronized void done(@NotNull final OpenstackLaunchPipeline pipeline) {
+            running--;
+            pipeline.inFlight--;
+            drain();
+        }
+
+        public void dispose() {
+            executor.shutdownNow();
+        }
+    }
+
+}
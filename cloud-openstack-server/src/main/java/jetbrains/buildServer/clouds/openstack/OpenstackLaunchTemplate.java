@@ -0,0 +1,100 @@
+package jetbrains.buildServer.clouds.openstack;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jclouds.openstack.nova.v2_0.options.CreateServerOptions;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Immutable server specification of an image, with all names already resolved to ids and the user script already encoded.<br/>
+ * Each launch derives its own jclouds options from it (cf. {@link #createServerOptions(Map)}), so parallel launches share no mutable state.
+ */
+public final class OpenstackLaunchTemplate {
+
+    @NotNull
+    private final String openstackImageId;
+    @NotNull
+    private final String flavorId;
+    @NotNull
+    private final List<String> networkIds;
+    @NotNull
+    private final Set<String> securityGroupNames;
+    @Nullable
+    private final String keyPairName;
+    @Nullable
+    private final String availabilityZone;
+    @Nullable
+    private final byte[] userData;
+
+    public OpenstackLaunchTemplate(@NotNull final String openstackImageId, @NotNull final String flavorId, @NotNull final Collection<String> networkIds,
+            @NotNull final Collection<String> securityGroupNames, @Nullable final String keyPairName, @Nullable final String availabilityZone,
+            @Nullable final byte[] userData) {
+        this.openstackImageId = openstackImageId;
+        this.flavorId = flavorId;
+        this.networkIds = ImmutableList.copyOf(networkIds);
+        this.securityGroupNames = ImmutableSet.copyOf(securityGroupNames);
+        this.keyPairName = keyPairName;
+        this.availabilityZone = availabilityZone;
+        this.userData = userData == null ? null : userData.clone();
+    }
+
+    /**
+     * Check if the template is still valid for current resolutions of the image
+     *
+     * @param openstackImageId Current openstack image id
+     * @param flavorId Current flavor id
+     * @param networkIds Current networks ids
+     * @param userData Current user script (null if none)
+     * @return true if nothing changed
+     */
+    public boolean matches(@NotNull final String openstackImageId, @NotNull final String flavorId, @NotNull final List<String> networkIds,
+            @Nullable final byte[] userData) {
+        return this.openstackImageId.equals(openstackImageId) && this.flavorId.equals(flavorId) && this.networkIds.equals(networkIds)
+                && Arrays.equals(this.userData, userData);
+    }
+
+    /**
+     * New jclouds options for one launch
+     *
+     * @param metadata Server metadata of the launch
+     * @return Options
+     */
+    @NotNull
+    public CreateServerOptions createServerOptions(@NotNull final Map<String, String> metadata) {
+        final CreateServerOptions options = new CreateServerOptions().keyPairName(keyPairName).securityGroupNames(securityGroupNames)
+                .networks(networkIds).metadata(metadata);
+        if (availabilityZone != null) {
+            options.availabilityZone(availabilityZone);
+        }
+        if (userData != null) {
+            options.userData(userData.clone()).configDrive(true);
+        }
+        return options;
+    }
+
+    @NotNull
+    public String getOpenstackImageId() {
+        return openstackImageId;
+    }
+
+    @NotNull
+    public String getFlavorId() {
+        return flavorId;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("imageId=%s, flavorId=%s, networks=%s, securityGroups=%s, keyPair=%s, availabilityZone=%s, userData=%s bytes",
+                openstackImageId, flavorId, networkIds, securityGroupNames, keyPairName, availabilityZone,
+                userData == null ? 0 : userData.length);
+    }
+
+}
@@ -0,0 +1,92 @@
+package jetbrains.buildServer.clouds.openstack;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Milestones of an instance launch, from TeamCity request to first build: each one is recorded once, and its delay since the request is
+ * recorded in metrics as 'timeline.&lt;milestone&gt;' (p50/p95/p99 over all launches).<br/>
+ * Instances restored from existing servers have no request, so no metrics.
+ */
+public class OpenstackLaunchTimeline {
+
+    public enum Milestone {
+        REQUESTED("requested"), CREATE_SENT("create sent"), SERVER_CREATED("server created"), BUILD("build"), ACTIVE("active"),
+        FIXED_IP("fixed ip"), FLOATING_IP("floating ip"), AGENT_REGISTERED("agent registered"), BUILD_STARTED("first build");
+
+        @NotNull
+        private final String label;
+
+        Milestone(@NotNull final String label) {
+            this.label = label;
+        }
+
+        @NotNull
+        public String getLabel() {
+            return label;
+        }
+
+        @NotNull
+        public String getMetricName() {
+            return "timeline." + name().toLowerCase(Locale.ENGLISH);
+        }
+    }
+
+    @NotNull
+    private final Map<Milestone, Long> milestones = new EnumMap<>(Milestone.class);
+
+    /**
+     * Record the milestone, if not already done
+     *
+     * @param milestone Milestone reached now
+     */
+    public void record(@NotNull final Milestone milestone) {
+        final Long requested;
+        final long now = System.currentTimeMillis();
+        synchronized (this) {
+            if (milestones.containsKey(milestone)) {
+                return;
+            }
+            milestones.put(milestone, now);
+            requested = milestones.get(Milestone.REQUESTED);
+        }
+        if (requested != null && milestone != Milestone.REQUESTED) {
+            OpenstackMetrics.getInstance().record(milestone.getMetricName(), now - requested);
+        }
+    }
+
+    /**
+     * @param milestone Milestone
+     * @return Delay (ms) between request and milestone, null if one of them is not reached
+     */
+    @Nullable
+    public synchronized Long getElapsed(@NotNull final Milestone milestone) {
+        final Long requested = milestones.get(Milestone.REQUESTED);
+        final Long reached = milestones.get(milestone);
+        return requested == null || reached == null ? null : reached - requested;
+    }
+
+    /**
+     * @return Reached milestones with their delay since request (sample: 'create sent +0.1s, server created +1.3s'), empty if no request
+     */
+    @NotNull
+    public synchronized String getSummary() {
+        final Long requested = milestones.get(Milestone.REQUESTED);
+        if (requested == null) {
+            return "";
+        }
+        final StringBuilder summary = new StringBuilder();
+        for (Map.Entry<Milestone, Long> milestone : milestones.entrySet()) {
+            if (milestone.getKey() != Milestone.REQUESTED) {
+                summary.append(summary.length() == 0 ? "" : ", ").append(milestone.getKey().getLabel())
+                        .append(String.format(Locale.ENGLISH, " +%.1fs", (milestone.getValue() - requested) / 1000.0));
+            }
+        }
+        return summary.toString();
+    }
+
+}
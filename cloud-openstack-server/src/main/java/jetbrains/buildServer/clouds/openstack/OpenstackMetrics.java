@@ -0,0 +1,191 @@
+package jetbrains.buildServer.clouds.openstack;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.jetbrains.annotations.NotNull;
+
+import com.intellij.openapi.diagnostic.Logger;
+
+import jetbrains.buildServer.log.Loggers;
+
+/**
+ * Plugin metrics, shared by all profiles: counters, durations histograms and gauges (values read on demand), exported through JMX as
+ * '{@value #OBJECT_NAME}'.<br/>
+ * Recording is lock free (striped adders, fixed histogram buckets), so it can be done on every OpenStack call.
+ */
+public final class OpenstackMetrics implements OpenstackMetricsMXBean {
+
+    public static final String OBJECT_NAME = "jetbrains.buildServer.clouds.openstack:type=Metrics";
+
+    @NotNull
+    private static final Logger LOG = Logger.getInstance(Loggers.CLOUD_CATEGORY_ROOT);
+
+    private static volatile OpenstackMetrics instance;
+
+    @NotNull
+    private final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    @NotNull
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+    @NotNull
+    private final ConcurrentMap<String, Supplier<? extends Number>> gauges = new ConcurrentHashMap<>();
+
+    OpenstackMetrics() {
+    }
+
+    @NotNull
+    public static OpenstackMetrics getInstance() {
+        if (instance == null) {
+            synchronized (OpenstackMetrics.class) {
+                if (instance == null) {
+                    instance = new OpenstackMetrics();
+                    register(instance);
+                }
+            }
+        }
+        return instance;
+    }
+
+    // Replace any previous registration (plugin reloaded)
+    private static void register(@NotNull final OpenstackMetrics metrics) {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(metrics, name);
+        } catch (JMException e) {
+            LOG.warn(String.format("Openstack metrics cannot be exported through JMX: %s", e.getMessage()), e);
+        }
+    }
+
+    public void increment(@NotNull final String name) {
+        counters.computeIfAbsent(name, n -> new LongAdder()).increment();
+    }
+
+    /**
+     * @param name Duration name (sample: 'api.servers.create')
+     * @param millis Duration (ms)
+     */
+    public void record(@NotNull final String name, final long millis) {
+        histograms.computeIfAbsent(name, n -> new Histogram()).record(millis);
+    }
+
+    public void registerGauge(@NotNull final String name, @NotNull final Supplier<? extends Number> gauge) {
+        gauges.put(name, gauge);
+    }
+
+    public void unregisterGauges(@NotNull final String prefix) {
+        gauges.keySet().removeIf(name -> name.startsWith(prefix));
+    }
+
+    public long getCounter(@NotNull final String name) {
+        final LongAdder counter = counters.get(name);
+        return counter == null ? 0 : counter.sum();
+    }
+
+    @NotNull
+    public Histogram getHistogram(@NotNull final String name) {
+        return histograms.computeIfAbsent(name, n -> new Histogram());
+    }
+
+    @NotNull
+    public Map<String, Long> getCounters() {
+        final Map<String, Long> values = new TreeMap<>();
+        counters.forEach((name, counter) -> values.put(name, counter.sum()));
+        return values;
+    }
+
+    @NotNull
+    public Map<String, Long> getGauges() {
+        final Map<String, Long> values = new TreeMap<>();
+        gauges.forEach((name, gauge) -> {
+            try {
+                values.put(name, gauge.get().longValue());
+            } catch (RuntimeException e) {
+                LOG.debug(String.format("Gauge %s cannot be read: %s", name, e.getMessage()));
+            }
+        });
+        return values;
+    }
+
+    @NotNull
+    public Map<String, Long> getDurations() {
+        final Map<String, Long> values = new TreeMap<>();
+        histograms.forEach((name, histogram) -> {
+            values.put(name + ".count", histogram.getCount());
+            values.put(name + ".p50", histogram.getPercentile(50));
+            values.put(name + ".p95", histogram.getPercentile(95));
+            values.put(name + ".p99", histogram.getPercentile(99));
+            values.put(name + ".max", histogram.getMax());
+        });
+        return values;
+    }
+
+    /**
+     * Durations histogram with exponential buckets: bucket i holds durations in [2^(i-1), 2^i) ms, so percentiles are approximated by the
+     * upper bound of their bucket (capped by the max)
+     */
+    public static final class Histogram {
+
+        private static final int BUCKETS = 40;
+
+        @NotNull
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        @NotNull
+        private final LongAdder count = new LongAdder();
+        @NotNull
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        void record(final long millis) {
+            final long value = Math.max(0, millis);
+            buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value)));
+            count.increment();
+            max.accumulate(value);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        /**
+         * @param percentile Percentile (0-100)
+         * @return Approximated duration (ms), 0 if no value
+         */
+        public long getPercentile(final double percentile) {
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                total += buckets.get(i);
+            }
+            if (total == 0) {
+                return 0;
+            }
+            final long rank = (long) Math.ceil(total * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(getMax(), i == 0 ? 0 : (1L << i) - 1);
+                }
+            }
+            return getMax();
+        }
+    }
+
+}
@@ -0,0 +1,25 @@
+package jetbrains.buildServer.clouds.openstack;
+
+import java.util.Map;
+
+/**
+ * JMX view of the plugin metrics (cf. {@link OpenstackMetrics})
+ */
+public interface OpenstackMetricsMXBean {
+
+    /**
+     * @return Counters by name (sample: 'api.servers.create.errors')
+     */
+    Map<String, Long> getCounters();
+
+    /**
+     * @return Current values by name (sample: 'launch.queue.&lt;profile&gt;.&lt;image&gt;')
+     */
+    Map<String, Long> getGauges();
+
+    /**
+     * @return Durations (ms) by name and statistic: '&lt;name&gt;.count', '.p50', '.p95', '.p99', '.max' (sample: 'api.servers.list.p95')
+     */
+    Map<String, Long> getDurations();
+
+}
@@ -0,0 +1,122 @@
+package jetbrains.buildServer.clouds.openstack;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+
+/**
+ * Stopped (SHUTOFF) servers of an image kept after their agent termination, rather than deleted ('reuse' images): next instance start
+ * only starts one of them again (no Nova scheduling, image download or port creation).<br/>
+ * Most recently parked servers are reused first; parked servers are evicted (to be deleted) once too old, or when too many.
+ */
+public class OpenstackParkedServers {
+
+    public static final String REUSE_PARKED_KEY = "openstack.reuse.parked";
+    public static final int REUSE_PARKED_DEFAULT_VALUE = 4;
+
+    public static final String REUSE_TTL_KEY = "openstack.reuse.ttl";
+    public static final int REUSE_TTL_DEFAULT_VALUE = 3600;
+
+    public static final class Parked {
+        @NotNull
+        private final String instanceId;
+        @NotNull
+        private final String serverId;
+        @Nullable
+        private final String floatingIp;
+        private final long parkedSince;
+
+        public Parked(@NotNull final String instanceId, @NotNull final String serverId, @Nullable final String floatingIp, final long parkedSince) {
+            this.instanceId = instanceId;
+            this.serverId = serverId;
+            this.floatingIp = floatingIp;
+            this.parkedSince = parkedSince;
+        }
+
+        @NotNull
+        public String getInstanceId() {
+            return instanceId;
+        }
+
+        @NotNull
+        public String getServerId() {
+            return serverId;
+        }
+
+        /**
+         * @return Floating ip still associated to the server, if known
+         */
+        @Nullable
+        public String getFloatingIp() {
+            return floatingIp;
+        }
+
+        public long getParkedSince() {
+            return parkedSince;
+        }
+    }
+
+    // Most recently parked first
+    @NotNull
+    private final LinkedList<Parked> parked = new LinkedList<>();
+
+    /**
+     * @param server Server just stopped
+     * @return Servers evicted (least recently parked ones) if too many are parked now
+     */
+    @NotNull
+    public synchronized List<Parked> park(@NotNull final Parked server) {
+        parked.removeIf(other -> other.serverId.equals(server.serverId));
+        // Kept ordered, restored servers being parked in any order
+        final ListIterator<Parked> it = parked.listIterator();
+        while (it.hasNext()) {
+            if (it.next().parkedSince <= server.parkedSince) {
+                it.previous();
+                break;
+            }
+        }
+        it.add(server);
+        final List<Parked> evicted = new ArrayList<>();
+        final int max = Math.max(0, TeamCityProperties.getInteger(REUSE_PARKED_KEY, REUSE_PARKED_DEFAULT_VALUE));
+        while (parked.size() > max) {
+            evicted.add(parked.pollLast());
+        }
+        return evicted;
+    }
+
+    /**
+     * @return Most recently parked server (no more parked), null if none
+     */
+    @Nullable
+    public synchronized Parked take() {
+        return parked.pollFirst();
+    }
+
+    /**
+     * @param vanished Servers not existing anymore (deleted out of TeamCity), just forgotten
+     * @return Servers evicted because parked for too long
+     */
+    @NotNull
+    public synchronized List<Parked> evict(@NotNull final Predicate<Parked> vanished) {
+        parked.removeIf(vanished);
+        final List<Parked> evicted = new ArrayList<>();
+        final long oldest = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(TeamCityProperties.getInteger(REUSE_TTL_KEY, REUSE_TTL_DEFAULT_VALUE));
+        while (!parked.isEmpty() && parked.peekLast().parkedSince < oldest) {
+            evicted.add(parked.pollLast());
+        }
+        return evicted;
+    }
+
+    public synchronized int size() {
+        return parked.size();
+    }
+
+}
@@ -0,0 +1,317 @@
+package jetbrains.buildServer.clouds.openstack;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+import org.jclouds.http.HttpResponseException;
+import org.jclouds.rest.InsufficientResourcesException;
+import org.jclouds.rest.RateLimitExceededException;
+import org.jclouds.rest.RetryAfterException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import com.intellij.openapi.diagnostic.Logger;
+
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+
+/**
+ * Token bucket limiting calls of an operation class on an OpenStack service endpoint, shared by all the profiles using this endpoint.<br/>
+ * The rate is adaptive (AIMD): halved on each over limit answer (413, 429, 503), with no call until 'Retry-After' (or a default backoff),
+ * then increased step by step on each success, up to the configured rate.<br/>
+ * Calling threads only wait short pacing delays: a call over limit, or which would wait longer (backoff), fails with
+ * {@link OverLimitException}, the caller rescheduling it on its executor.
+ */
+public class OpenstackRateLimiter {
+
+    /**
+     * Call not done (or rejected by OpenStack before processing), to be retried after a delay
+     */
+    public static class OverLimitException extends IllegalStateException {
+        private static final long serialVersionUID = 1L;
+
+        private final long delay;
+
+        public OverLimitException(@NotNull final String message, final long delay, @Nullable final Throwable cause) {
+            super(message, cause);
+            this.delay = delay;
+        }
+
+        /**
+         * @return Milliseconds to wait before retry
+         */
+        public long getDelay() {
+            return delay;
+        }
+    }
+
+    public enum Operation {
+        READ, CREATE, DELETE
+    }
+
+    public static final String RATE_LIMIT_READ_KEY = "openstack.ratelimit.read";
+    public static final int RATE_LIMIT_READ_DEFAULT_VALUE = 20;
+
+    public static final String RATE_LIMIT_CREATE_KEY = "openstack.ratelimit.create";
+    public static final int RATE_LIMIT_CREATE_DEFAULT_VALUE = 2;
+
+    public static final String RATE_LIMIT_DELETE_KEY = "openstack.ratelimit.delete";
+    public static final int RATE_LIMIT_DELETE_DEFAULT_VALUE = 5;
+
+    public static final String RATE_LIMIT_RETRIES_KEY = "openstack.ratelimit.retries";
+    public static final int RATE_LIMIT_RETRIES_DEFAULT_VALUE = 3;
+
+    public static final String RATE_LIMIT_BACKOFF_KEY = "openstack.ratelimit.backoff";
+    public static final int RATE_LIMIT_BACKOFF_DEFAULT_VALUE = 5;
+
+    public static final String RATE_LIMIT_WAIT_KEY = "openstack.ratelimit.wait";
+    public static final int RATE_LIMIT_WAIT_DEFAULT_VALUE = 1000;
+
+    // Additive increase (ratio of max rate) on success, and minimal rate (ratio of max rate) after decreases
+    private static final double INCREASE_RATIO = 0.05;
+    private static final double MIN_RATIO = 0.05;
+
+    @NotNull
+    private static final Logger LOG = Logger.getInstance(Loggers.CLOUD_CATEGORY_ROOT);
+    // Limiters in use (guarded by itself), released with the last API of their endpoint
+    @NotNull
+    private static final Map<String, OpenstackRateLimiter> LIMITERS = new HashMap<>();
+
+    @NotNull
+    private final String name;
+    // Read again on each call: rate properties changes applied without restart
+    @NotNull
+    private final DoubleSupplier maxRate;
+    private int references = 0;
+    private double rate;
+    private double tokens;
+    private long refillTime = System.nanoTime();
+    private long blockedUntil = refillTime;
+
+    /**
+     * @param name Limiter name (logs)
+     * @param maxRate Maximum calls per second
+     */
+    OpenstackRateLimiter(@NotNull final String name, final double maxRate) {
+        this(name, () -> maxRate);
+    }
+
+    private OpenstackRateLimiter(@NotNull final String name, @NotNull final DoubleSupplier maxRate) {
+        this.name = name;
+        this.maxRate = maxRate;
+        this.rate = maxRate.getAsDouble();
+        this.tokens = getCapacity();
+    }
+
+    /**
+     * @param endpointUrl OpenStack endpoint (keystone) URL
+     * @param service Service name (sample: nova, neutron)
+     * @param operation Operation class
+     * @return Limiter shared by all the callers of this operation class on this endpoint service, to be released (cf.
+     *         {@link #release(OpenstackRateLimiter)}) when not used anymore
+     */
+    @NotNull
+    public static OpenstackRateLimiter forEndpoint(@NotNull final String endpointUrl, @NotNull final String service,
+            @NotNull final Operation operation) {
+        synchronized (LIMITERS) {
+            final OpenstackRateLimiter limiter = LIMITERS.computeIfAbsent(String.format("%s %s %s", endpointUrl, service, operation),
+                    name -> new OpenstackRateLimiter(name, () -> getMaxRate(operation)));
+            limiter.references++;
+            return limiter;
+        }
+    }
+
+    /**
+     * Release a limiter: forgotten (learned rate included) once not used anymore by any API of its endpoint
+     *
+     * @param limiter Limiter
+     */
+    public static void release(@NotNull final OpenstackRateLimiter limiter) {
+        synchronized (LIMITERS) {
+            if (--limiter.references <= 0) {
+                LIMITERS.remove(limiter.name, limiter);
+            }
+        }
+    }
+
+    private static double getMaxRate(@NotNull final Operation operation) {
+        switch (operation) {
+        case CREATE:
+            return Math.max(1, TeamCityProperties.getInteger(RATE_LIMIT_CREATE_KEY, RATE_LIMIT_CREATE_DEFAULT_VALUE));
+        case DELETE:
+            return Math.max(1, TeamCityProperties.getInteger(RATE_LIMIT_DELETE_KEY, RATE_LIMIT_DELETE_DEFAULT_VALUE));
+        default:
+            return Math.max(1, TeamCityProperties.getInteger(RATE_LIMIT_READ_KEY, RATE_LIMIT_READ_DEFAULT_VALUE));
+        }
+    }
+
+    /**
+     * Call OpenStack when a token is available
+     *
+     * @param call OpenStack call
+     * @param idempotent false if call cannot be safely repeated (sample: server creation), an over limit answer being then retryable only if
+     *            OpenStack rejected it before processing (413, 429; a 503 from a proxy could come after Nova accepted it)
+     * @return Call result
+     * @throws OverLimitException if call is to be retried later (rate limit backoff, or retryable over limit answer)
+     */
+    public <T> T call(@NotNull final Supplier<T> call, final boolean idempotent) {
+        acquire();
+        try {
+            final T result = call.get();
+            succeeded();
+            return result;
+        } catch (RuntimeException e) {
+            final Integer retryAfter = getOverLimitRetryAfter(e);
+            if (retryAfter == null) {
+                throw e;
+            }
+            final long delay = overLimited(retryAfter);
+            LOG.info(String.format("OpenStack over limit for %s (retry after %s ms, rate now %.2f/s): %s", name, delay, getRate(), e.getMessage()));
+            if (!idempotent && !isRejected(e)) {
+                throw e;
+            }
+            throw new OverLimitException(String.format("OpenStack over limit for %s, retry after %s ms", name, delay), delay, e);
+        }
+    }
+
+    public <T> T call(@NotNull final Supplier<T> call) {
+        return call(call, true);
+    }
+
+    public void run(@NotNull final Runnable call) {
+        call(() -> {
+            call.run();
+            return null;
+        });
+    }
+
+    // Short pacing waited on calling thread, longer waits and backoff left to the caller
+    private void acquire() {
+        long wait;
+        while ((wait = reserve()) > 0) {
+            final long maxWait = TimeUnit.MILLISECONDS.toNanos(TeamCityProperties.getInteger(RATE_LIMIT_WAIT_KEY, RATE_LIMIT_WAIT_DEFAULT_VALUE));
+            if (wait > maxWait || isBlocked()) {
+                throw new OverLimitException(String.format("OpenStack rate limit for %s, retry after %s ms", name,
+                        TimeUnit.NANOSECONDS.toMillis(wait)), Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)), null);
+            }
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(String.format("Interrupted while waiting OpenStack rate limit for %s", name), e);
+            }
+        }
+    }
+
+    // Take a token, or return nanoseconds to wait before next try
+    private synchronized long reserve() {
+        final long now = System.nanoTime();
+        if (now < blockedUntil) {
+            return blockedUntil - now;
+        }
+        // Max rate possibly lowered meanwhile
+        rate = Math.min(rate, maxRate.getAsDouble());
+        tokens = Math.min(getCapacity(), tokens + (now - refillTime) * rate / TimeUnit.SECONDS.toNanos(1));
+        refillTime = now;
+        if (tokens >= 1) {
+            tokens--;
+            return 0;
+        }
+        return Math.max(1, (long) ((1 - tokens) * TimeUnit.SECONDS.toNanos(1) / rate));
+    }
+
+    private synchronized boolean isBlocked() {
+        return System.nanoTime() < blockedUntil;
+    }
+
+    private synchronized void succeeded() {
+        final double max = maxRate.getAsDouble();
+        rate = Math.min(max, rate + max * INCREASE_RATIO);
+    }
+
+    // Return milliseconds before next call
+    private synchronized long overLimited(final int retryAfter) {
+        rate = Math.max(maxRate.getAsDouble() * MIN_RATIO, rate / 2);
+        tokens = 0;
+        final int seconds = retryAfter > 0 ? retryAfter : TeamCityProperties.getInteger(RATE_LIMIT_BACKOFF_KEY, RATE_LIMIT_BACKOFF_DEFAULT_VALUE);
+        final long now = System.nanoTime();
+        blockedUntil = Math.max(blockedUntil, now + TimeUnit.SECONDS.toNanos(seconds));
+        return TimeUnit.NANOSECONDS.toMillis(blockedUntil - now);
+    }
+
+    // Burst of one second at current rate
+    private double getCapacity() {
+        return Math.max(1, rate);
+    }
+
+    synchronized double getRate() {
+        return rate;
+    }
+
+    /**
+     * @param e OpenStack call failure
+     * @return Seconds to wait before retry (0 if unknown), or null if failure is not an over limit one
+     */
+    @Nullable
+    static Integer getOverLimitRetryAfter(@NotNull final Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof InsufficientResourcesException) {
+                // Quota exceeded (413 too): retry is useless
+                return null;
+            }
+            if (cause instanceof RetryAfterException) {
+                return Math.max(0, ((RetryAfterException) cause).getSeconds());
+            }
+            if (cause instanceof RateLimitExceededException) {
+                return 0;
+            }
+            if (cause instanceof HttpResponseException && ((HttpResponseException) cause).getResponse() != null) {
+                final int status = ((HttpResponseException) cause).getResponse().getStatusCode();
+                if (status == 413 || status == 429 || status == 503) {
+                    return parseRetryAfter(((HttpResponseException) cause).getResponse().getFirstHeaderOrNull("Retry-After"));
+                }
+            }
+            if (cause.getCause() == cause) {
+                break;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param e Over limit failure
+     * @return true if the request was rejected before any processing (413, 429), false if unknown (sample: 503)
+     */
+    static boolean isRejected(@NotNull final Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof HttpResponseException && ((HttpResponseException) cause).getResponse() != null) {
+                final int status = ((HttpResponseException) cause).getResponse().getStatusCode();
+                return status == 413 || status == 429;
+            }
+            if (cause instanceof RateLimitExceededException) {
+                // jclouds mapping of 429
+                return true;
+            }
+            if (cause.getCause() == cause) {
+                break;
+            }
+        }
+        return false;
+    }
+
+    // Only delay in seconds is supported (HTTP date ignored: default backoff)
+    private static int parseRetryAfter(@Nullable final String retryAfter) {
+        if (retryAfter == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Integer.parseInt(retryAfter.trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+}
@@ -0,0 +1,361 @@
+package jetbrains.buildServer.clouds.openstack;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.jetbrains.annotations.NotNull;
+
+import com.intellij.openapi.diagnostic.Logger;
+
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.NamedDaemonThreadFactory;
+
+/**
+ * Threads shared by all the profiles of the plugin: a small timer pool only triggering delayed tasks, and a bounded workers pool running
+ * them (jclouds blocking calls).<br/>
+ * Each profile is a partition running at most a few tasks at once (others wait in the profile queue), so a slow tenant cannot hold all
+ * the workers. Threads count does not depend on images count.
+ */
+public class OpenstackScheduler {
+
+    public static final String SCHEDULER_TIMERS_KEY = "openstack.scheduler.timers";
+    public static final int SCHEDULER_TIMERS_DEFAULT_VALUE = 1;
+
+    public static final String SCHEDULER_WORKERS_KEY = "openstack.scheduler.workers";
+    public static final int SCHEDULER_WORKERS_DEFAULT_VALUE = 16;
+
+    public static final String SCHEDULER_PROFILE_PARALLELISM_KEY = "openstack.scheduler.profile.parallelism";
+    public static final int SCHEDULER_PROFILE_PARALLELISM_DEFAULT_VALUE = 4;
+
+    @NotNull
+    private static final Logger LOG = Logger.getInstance(Loggers.CLOUD_CATEGORY_ROOT);
+
+    private static volatile OpenstackScheduler instance;
+
+    @NotNull
+    private final ScheduledThreadPoolExecutor timers;
+    @NotNull
+    private final ThreadPoolExecutor workers;
+
+    OpenstackScheduler(final int timersCount, final int workersCount) {
+        timers = new ScheduledThreadPoolExecutor(Math.max(1, timersCount), new NamedDaemonThreadFactory("openstack-timer"));
+        timers.setRemoveOnCancelPolicy(true);
+        // Queue is bounded by partitions: each profile has at most its parallelism submitted to workers
+        workers = new ThreadPoolExecutor(Math.max(1, workersCount), Math.max(1, workersCount), 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                new NamedDaemonThreadFactory("openstack-worker"));
+        workers.allowCoreThreadTimeOut(true);
+    }
+
+    @NotNull
+    public static OpenstackScheduler getInstance() {
+        if (instance == null) {
+            synchronized (OpenstackScheduler.class) {
+                if (instance == null) {
+                    instance = new OpenstackScheduler(TeamCityProperties.getInteger(SCHEDULER_TIMERS_KEY, SCHEDULER_TIMERS_DEFAULT_VALUE),
+                            TeamCityProperties.getInteger(SCHEDULER_WORKERS_KEY, SCHEDULER_WORKERS_DEFAULT_VALUE));
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * @param profileId Profile identifier (logs)
+     * @return Executors factory of a new profile partition
+     */
+    @NotNull
+    public ExecutorServiceFactory createProfile(@NotNull final String profileId) {
+        return createProfile(profileId,
+                TeamCityProperties.getInteger(SCHEDULER_PROFILE_PARALLELISM_KEY, SCHEDULER_PROFILE_PARALLELISM_DEFAULT_VALUE));
+    }
+
+    /**
+     * @param profileId Profile identifier (logs)
+     * @param parallelism Maximum count of tasks of the partition run at once
+     * @return Executors factory of a new profile partition
+     */
+    @NotNull
+    public ExecutorServiceFactory createProfile(@NotNull final String profileId, final int parallelism) {
+        return new Profile(profileId, Math.max(1, parallelism));
+    }
+
+    /**
+     * @return Current threads count (timers and workers)
+     */
+    int getThreadsCount() {
+        return timers.getPoolSize() + workers.getPoolSize();
+    }
+
+    private final class Profile implements ExecutorServiceFactory {
+
+        @NotNull
+        private final String profileId;
+        private final int parallelism;
+        @NotNull
+        private final Queue<Task> queue = new ArrayDeque<>();
+        private int running = 0;
+
+        private Profile(@NotNull final String profileId, final int parallelism) {
+            this.profileId = profileId;
+            this.parallelism = parallelism;
+        }
+
+        @NotNull
+        public ScheduledExecutorService createExecutorService(@NotNull final String duty) {
+            return new Partition(this, duty);
+        }
+
+        private synchronized void enqueue(@NotNull final Task task) {
+            queue.add(task);
+            drain();
+        }
+
+        // Tasks of the partition not yet started
+        @NotNull
+        private synchronized List<Runnable> remove(@NotNull final Partition partition) {
+            final List<Runnable> removed = new ArrayList<>();
+            for (Iterator<Task> it = queue.iterator(); it.hasNext();) {
+                final Task task = it.next();
+                if (task.partition == partition) {
+                    it.remove();
+                    removed.add(task.command);
+                }
+            }
+            return removed;
+        }
+
+        // Caller holds the lock
+        private void drain() {
+            while (running < parallelism && !queue.isEmpty()) {
+                final Task task = queue.poll();
+                running++;
+                workers.execute(() -> run(task));
+            }
+        }
+
+        private void run(@NotNull final Task task) {
+            try {
+                task.command.run();
+            } catch (RuntimeException e) {
+                LOG.warn(String.format("Task failure in profile %s (%s): %s", profileId, task.partition.duty, e.getMessage()), e);
+            } finally {
+                task.partition.done();
+                synchronized (this) {
+                    running--;
+                    drain();
+                }
+            }
+        }
+    }
+
+    private static final class Task {
+        @NotNull
+        private final Partition partition;
+        @NotNull
+        private final Runnable command;
+
+        private Task(@NotNull final Partition partition, @NotNull final Runnable command) {
+            this.partition = partition;
+            this.command = command;
+        }
+    }
+
+    /**
+     * Executor of a profile duty (status loop, image instances...), with its own lifecycle
+     */
+    private final class Partition extends AbstractExecutorService implements ScheduledExecutorService {
+
+        @NotNull
+        private final Profile profile;
+        @NotNull
+        private final String duty;
+        @NotNull
+        private final Set<DelayedTask<?>> delayed = ConcurrentHashMap.newKeySet();
+        private volatile boolean shutdown = false;
+        // Tasks queued or running, guarded by this
+        private int active = 0;
+
+        private Partition(@NotNull final Profile profile, @NotNull final String duty) {
+            this.profile = profile;
+            this.duty = duty;
+        }
+
+        public void execute(@NotNull final Runnable command) {
+            synchronized (this) {
+                if (shutdown) {
+                    throw new RejectedExecutionException(String.format("Executor %s of profile %s is shut down", duty, profile.profileId));
+                }
+                active++;
+            }
+            profile.enqueue(new Task(this, command));
+        }
+
+        private synchronized void done() {
+            active--;
+            if (active == 0) {
+                notifyAll();
+            }
+        }
+
+        @NotNull
+        public ScheduledFuture<?> schedule(@NotNull final Runnable command, final long delay, @NotNull final TimeUnit unit) {
+            return new DelayedTask<>(this, Executors.callable(command, null), 0).schedule(unit.toNanos(delay));
+        }
+
+        @NotNull
+        public <V> ScheduledFuture<V> schedule(@NotNull final Callable<V> callable, final long delay, @NotNull final TimeUnit unit) {
+            return new DelayedTask<>(this, callable, 0).schedule(unit.toNanos(delay));
+        }
+
+        @NotNull
+        public ScheduledFuture<?> scheduleAtFixedRate(@NotNull final Runnable command, final long initialDelay, final long period,
+                @NotNull final TimeUnit unit) {
+            return new DelayedTask<>(this, Executors.callable(command, null), unit.toNanos(period)).schedule(unit.toNanos(initialDelay));
+        }
+
+        @NotNull
+        public ScheduledFuture<?> scheduleWithFixedDelay(@NotNull final Runnable command, final long initialDelay, final long delay,
+                @NotNull final TimeUnit unit) {
+            return new DelayedTask<>(this, Executors.callable(command, null), -unit.toNanos(delay)).schedule(unit.toNanos(initialDelay));
+        }
+
+        public void shutdown() {
+            shutdown = true;
+            for (DelayedTask<?> task : delayed) {
+                task.cancel(false);
+            }
+        }
+
+        @NotNull
+        public List<Runnable> shutdownNow() {
+            shutdown();
+            final List<Runnable> removed = profile.remove(this);
+            synchronized (this) {
+                active -= removed.size();
+                if (active == 0) {
+                    notifyAll();
+                }
+            }
+            return removed;
+        }
+
+        public boolean isShutdown() {
+            return shutdown;
+        }
+
+        public synchronized boolean isTerminated() {
+            return shutdown && active == 0;
+        }
+
+        public synchronized boolean awaitTermination(final long timeout, @NotNull final TimeUnit unit) throws InterruptedException {
+            final long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (!isTerminated()) {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Task triggered by a timer, then run by the partition.<br/>
+     * Period: 0 for one shot, positive for fixed rate, negative for fixed delay (next run scheduled once previous one is completed, so
+     * runs of a periodic task never overlap).
+     */
+    private final class DelayedTask<V> extends FutureTask<V> implements ScheduledFuture<V> {
+
+        @NotNull
+        private final Partition partition;
+        private final long period;
+        private long time;
+        private volatile ScheduledFuture<?> timer;
+
+        private DelayedTask(@NotNull final Partition partition, @NotNull final Callable<V> callable, final long period) {
+            super(callable);
+            this.partition = partition;
+            this.period = period;
+        }
+
+        @NotNull
+        private DelayedTask<V> schedule(final long delay) {
+            if (partition.isShutdown()) {
+                throw new RejectedExecutionException(String.format("Executor %s of profile %s is shut down", partition.duty,
+                        partition.profile.profileId));
+            }
+            time = System.nanoTime() + delay;
+            partition.delayed.add(this);
+            timer = timers.schedule(this::fire, delay, TimeUnit.NANOSECONDS);
+            if (isCancelled()) {
+                timer.cancel(false);
+            }
+            return this;
+        }
+
+        private void fire() {
+            partition.delayed.remove(this);
+            try {
+                partition.execute(this);
+            } catch (RejectedExecutionException e) {
+                cancel(false);
+            }
+        }
+
+        @Override
+        public void run() {
+            if (period == 0) {
+                super.run();
+            } else if (runAndReset()) {
+                try {
+                    final long now = System.nanoTime();
+                    schedule(period > 0 ? Math.max(0, time + period - now) : -period);
+                } catch (RejectedExecutionException e) {
+                    // Partition shut down
+                    cancel(false);
+                }
+            }
+        }
+
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            final boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                partition.delayed.remove(this);
+                final ScheduledFuture<?> current = timer;
+                if (current != null) {
+                    current.cancel(false);
+                }
+            }
+            return cancelled;
+        }
+
+        public long getDelay(@NotNull final TimeUnit unit) {
+            return unit.convert(time - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        public int compareTo(@NotNull final Delayed other) {
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+        }
+    }
+
+}
@@ -0,0 +1,95 @@
+package jetbrains.buildServer.clouds.openstack;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jclouds.openstack.nova.v2_0.domain.Server;
+import org.jclouds.openstack.v2_0.domain.PaginatedCollection;
+import org.jclouds.openstack.v2_0.options.PaginationOptions;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Multimap;
+import com.intellij.openapi.diagnostic.Logger;
+
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+
+/**
+ * Server lookups of the launches of an image (fixed ip waits), coalesced for launch bursts.<br/>
+ * While a single server is waited, it is read alone; when several are, lookups within a short window share one filtered servers listing,
+ * so a burst of N launches costs one Nova call per check instead of N.
+ */
+public class OpenstackServerLookup {
+
+    public static final String LAUNCH_BATCH_WINDOW_KEY = "openstack.launch.batch.window";
+    public static final int LAUNCH_BATCH_WINDOW_DEFAULT_VALUE = 500;
+
+    @NotNull
+    private static final Logger LOG = Logger.getInstance(Loggers.CLOUD_CATEGORY_ROOT);
+    @NotNull
+    private final OpenstackApi openstackApi;
+    @NotNull
+    private final Multimap<String, String> filters;
+    @NotNull
+    private final Set<String> waited = ConcurrentHashMap.newKeySet();
+    @NotNull
+    private Map<String, Server> servers = new HashMap<>();
+    private long listTime = 0;
+
+    public OpenstackServerLookup(@NotNull final OpenstackApi openstackApi, @NotNull final Multimap<String, String> filters) {
+        this.openstackApi = openstackApi;
+        this.filters = filters;
+    }
+
+    /**
+     * @param serverId Server waited (until {@link #done(String)}), its lookups may be coalesced with the other waited ones
+     */
+    public void waiting(@NotNull final String serverId) {
+        waited.add(serverId);
+    }
+
+    public void done(@NotNull final String serverId) {
+        waited.remove(serverId);
+    }
+
+    /**
+     * @param serverId Server id
+     * @return Server, null if not found (possibly created after last listing, to be looked up again)
+     */
+    @Nullable
+    public Server get(@NotNull final String serverId) {
+        if (waited.size() <= 1) {
+            return openstackApi.getServer(serverId);
+        }
+        synchronized (this) {
+            // Concurrent lookups wait the listing in progress, then share it
+            if (System.currentTimeMillis() - listTime > TeamCityProperties.getInteger(LAUNCH_BATCH_WINDOW_KEY, LAUNCH_BATCH_WINDOW_DEFAULT_VALUE)) {
+                list();
+            }
+            return servers.get(serverId);
+        }
+    }
+
+    private void list() {
+        LOG.debug(String.format("Listing openstack servers for %s waited launches", waited.size()));
+        final Map<String, Server> listed = new HashMap<>();
+        PaginatedCollection<Server> page = openstackApi.listServers(new PaginationOptions().queryParameters(filters));
+        while (true) {
+            for (Server server : page) {
+                listed.put(server.getId(), server);
+            }
+            final Optional<Object> marker = page.nextMarker();
+            if (!marker.isPresent()) {
+                break;
+            }
+            page = openstackApi.listServers(new PaginationOptions().queryParameters(filters).marker(marker.get().toString()));
+        }
+        servers = listed;
+        listTime = System.currentTimeMillis();
+    }
+
+}
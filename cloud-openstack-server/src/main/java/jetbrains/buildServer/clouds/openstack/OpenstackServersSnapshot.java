@@ -0,0 +1,135 @@
+package jetbrains.buildServer.clouds.openstack;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.jclouds.openstack.nova.v2_0.domain.Server;
+import org.jclouds.openstack.v2_0.domain.PaginatedCollection;
+import org.jclouds.openstack.v2_0.options.PaginationOptions;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Multimap;
+import com.intellij.openapi.diagnostic.Logger;
+
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+
+/**
+ * Local copy of the tenant servers list, restricted by Nova server side filters (sample: 'name' regular expression).<br/>
+ * After a full listing, only servers changed since last known update are requested to Nova ('changes-since', which includes deleted
+ * servers). A full listing is done again periodically, after any error, or if changes are paginated.
+ */
+public class OpenstackServersSnapshot {
+
+    public static final String INCREMENTAL_KEY = "openstack.status.incremental";
+
+    public static final String RESYNC_KEY = "openstack.status.resync";
+    public static final int RESYNC_DEFAULT_VALUE = 30;
+
+    // Local clock drift tolerated when no Nova date is known (watermark from request time)
+    private static final long CLOCK_MARGIN = TimeUnit.MINUTES.toMillis(1);
+
+    @NotNull
+    private static final Logger LOG = Logger.getInstance(Loggers.CLOUD_CATEGORY_ROOT);
+    @NotNull
+    private final OpenstackApi openstackApi;
+    @NotNull
+    private final Multimap<String, String> filters;
+    @NotNull
+    private final Map<String, Server> servers = new HashMap<>();
+    @Nullable
+    private Date changesSince = null;
+    private int incrementalCount = 0;
+
+    public OpenstackServersSnapshot(@NotNull final OpenstackApi openstackApi, @NotNull final Multimap<String, String> filters) {
+        this.openstackApi = openstackApi;
+        this.filters = filters;
+    }
+
+    /**
+     * Update the snapshot from Nova
+     *
+     * @return Current servers of the tenant
+     */
+    @NotNull
+    public synchronized Collection<Server> refresh() {
+        try {
+            if (changesSince == null || !isIncremental() || incrementalCount >= TeamCityProperties.getInteger(RESYNC_KEY, RESYNC_DEFAULT_VALUE)
+                    || !refreshChanges()) {
+                refreshAll();
+            }
+        } catch (RuntimeException e) {
+            // Full listing on next refresh
+            changesSince = null;
+            throw e;
+        }
+        return new ArrayList<>(servers.values());
+    }
+
+    private void refreshAll() {
+        LOG.debug("Full listing of openstack servers");
+        servers.clear();
+        changesSince = null;
+        final long requestTime = System.currentTimeMillis();
+        PaginatedCollection<Server> page = openstackApi.listServers(getFilterOptions());
+        while (true) {
+            for (Server server : page) {
+                servers.put(server.getId(), server);
+                updateChangesSince(server);
+            }
+            final Optional<Object> marker = page.nextMarker();
+            if (!marker.isPresent()) {
+                break;
+            }
+            page = openstackApi.listServers(getFilterOptions().marker(marker.get().toString()));
+        }
+        if (changesSince == null) {
+            // No server owned: changes requested since listing (with a margin, server clock unknown), next updates still incremental
+            changesSince = new Date(requestTime - CLOCK_MARGIN);
+        }
+        incrementalCount = 0;
+    }
+
+    // Return false if changes are paginated (full listing required)
+    private boolean refreshChanges() {
+        LOG.debug(String.format("Listing openstack servers changed since %s", changesSince));
+        final PaginatedCollection<Server> changes = openstackApi.listServers(getFilterOptions().changesSince(changesSince));
+        if (changes.nextMarker().isPresent()) {
+            return false;
+        }
+        for (Server server : changes) {
+            if (server.getStatus() == Server.Status.DELETED) {
+                servers.remove(server.getId());
+            } else {
+                servers.put(server.getId(), server);
+            }
+            updateChangesSince(server);
+        }
+        incrementalCount++;
+        return true;
+    }
+
+    // Nova 'updated' date (server clock) is used, avoiding any local clock drift
+    private void updateChangesSince(@NotNull final Server server) {
+        final Date updated = server.getUpdated() != null ? server.getUpdated() : server.getCreated();
+        if (updated != null && (changesSince == null || updated.after(changesSince))) {
+            changesSince = updated;
+        }
+    }
+
+    @NotNull
+    private PaginationOptions getFilterOptions() {
+        return new PaginationOptions().queryParameters(filters);
+    }
+
+    private static boolean isIncremental() {
+        return TeamCityProperties.getBooleanOrTrue(INCREMENTAL_KEY);
+    }
+
+}
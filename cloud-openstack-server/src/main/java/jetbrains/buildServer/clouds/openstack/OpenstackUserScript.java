@@ -0,0 +1,74 @@
+package jetbrains.buildServer.clouds.openstack;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.jetbrains.annotations.NotNull;
+
+import com.intellij.openapi.diagnostic.Logger;
+
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.util.FileUtil;
+
+/**
+ * User script of an image ('user_script' file in plugin data directory), kept in memory as user data bytes.<br/>
+ * The file is read again only if its modification date or size changed, making it possible to change it without touching TeamCity.
+ */
+public class OpenstackUserScript {
+
+    /**
+     * Nova maximum user data size: 65535 bytes once base64 encoded
+     */
+    public static final int MAX_SIZE = 65535 / 4 * 3;
+
+    @NotNull
+    private static final Logger LOG = Logger.getInstance(Loggers.CLOUD_CATEGORY_ROOT);
+    @NotNull
+    private final File file;
+    private long lastModified = -1;
+    private long length = -1;
+    private byte[] userData;
+
+    public OpenstackUserScript(@NotNull final File file) {
+        this.file = file;
+    }
+
+    /**
+     * User data of the script, loaded from file only if changed since previous call
+     *
+     * @return User data (not to be modified)
+     * @throws IOException if file cannot be read
+     * @throws OpenstackException if script is too large for Nova
+     */
+    @NotNull
+    public synchronized byte[] getUserData() throws IOException, OpenstackException {
+        final long currentLastModified = file.lastModified();
+        final long currentLength = file.length();
+        if (userData == null || currentLastModified != lastModified || currentLength != length) {
+            load();
+            lastModified = currentLastModified;
+            length = currentLength;
+        }
+        return userData;
+    }
+
+    private void load() throws IOException, OpenstackException {
+        final byte[] data;
+        try {
+            // this is userScript actually, but CreateServerOptions calls it userData
+            data = FileUtil.readText(file).trim().getBytes(StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            userData = null;
+            throw new IOException(String.format("Error in reading user script: %s", e.getMessage()), e);
+        }
+        if (data.length > MAX_SIZE) {
+            userData = null;
+            throw new OpenstackException(
+                    String.format("User script %s is too large: %s bytes (Nova maximum is %s bytes)", file.getName(), data.length, MAX_SIZE));
+        }
+        LOG.debug(String.format("User script loaded: %s (%s bytes)", file.getPath(), data.length));
+        userData = data;
+    }
+
+}
@@ -1,4 +1,5 @@
 <%@ taglib prefix="c" uri="http://java.sun.com/jsp/jstl/core" %>
 
 <jsp:useBean id="image" type="jetbrains.buildServer.clouds.openstack.OpenstackCloudImage" scope="request"/>
-<b>image:</b> <c:out value="${image.getOpenstackImageName()}"/> <b>flavor:</b> <c:out value="${image.getOpenstackFalvorName()}"/>
+<b>image:</b> <c:out value="${image.getOpenstackImageName()}"/> <b>flavor:</b> <c:out value="${image.getOpenstackFalvorName()}"/> <b>launch queue:</b> <c:out value="${image.getLaunchQueueDepth()}"/>
+<c:forEach var="instance" items="${image.getInstances()}"><c:if test="${not empty instance.getTimeline().getSummary()}"><br/><b><c:out value="${instance.getName()}"/>:</b> <c:out value="${instance.getTimeline().getSummary()}"/></c:if></c:forEach>
@@ -28,7 +28,9 @@ import jetbrains.buildServer.clouds.CloudRegistrar;
 import jetbrains.buildServer.clouds.InstanceStatus;
 import jetbrains.buildServer.clouds.openstack.util.TestCloudClientParameters;
 import jetbrains.buildServer.serverSide.AgentDescription;
+import jetbrains.buildServer.serverSide.BuildServerListener;
 import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.util.EventDispatcher;
 import jetbrains.buildServer.web.openapi.PluginDescriptor;
 
 public class AbstractTestOpenstackCloudClient {
@@ -59,7 +61,12 @@ public class AbstractTestOpenstackCloudClient {
             }
         });
 
-        OpenstackCloudClientFactory factory = new OpenstackCloudClientFactory(cloudRegistrar, pluginDescriptor, new ServerPaths("target"));
+        @SuppressWarnings("unchecked")
+        final EventDispatcher<BuildServerListener> eventDispatcher = mock(EventDispatcher.class);
+        // No instance of a previous test rehydrated from journal
+        final ServerPaths serverPaths = new ServerPaths("target");
+        OpenstackCloudClient.getJournalFile(serverPaths, new TestCloudClientParameters(params).getProfileId()).delete();
+        OpenstackCloudClientFactory factory = new OpenstackCloudClientFactory(cloudRegistrar, pluginDescriptor, serverPaths, eventDispatcher);
         return factory.createNewClient(null, new TestCloudClientParameters(params));
     }
 
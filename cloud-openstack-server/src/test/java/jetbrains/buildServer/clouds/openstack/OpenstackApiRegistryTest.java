@@ -0,0 +1,58 @@
+package jetbrains.buildServer.clouds.openstack;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import jetbrains.buildServer.serverSide.TeamCityPropertiesMock;
+
+public class OpenstackApiRegistryTest {
+
+    private static final String ENDPOINT = "http://localhost:1/v3";
+
+    @AfterMethod
+    public void tearDown() {
+        TeamCityPropertiesMock.reset();
+    }
+
+    @Test
+    public void testSharedAndReleased() {
+        TeamCityPropertiesMock.addProperty(OpenstackApiRegistry.API_LINGER_KEY, "0");
+
+        OpenstackApi api1 = OpenstackApiRegistry.acquire(ENDPOINT, "default:tenant:user", "password", "region1");
+        OpenstackApi api2 = OpenstackApiRegistry.acquire(ENDPOINT, "default:tenant:user", "password", "region1");
+        OpenstackApi other = OpenstackApiRegistry.acquire(ENDPOINT, "default:tenant:user", "password", "region2");
+        Assert.assertSame(api2, api1);
+        Assert.assertNotSame(other, api1);
+
+        // Still used by one profile
+        OpenstackApiRegistry.release(api1);
+        Assert.assertSame(OpenstackApiRegistry.acquire(ENDPOINT, "default:tenant:user", "password", "region1"), api1);
+        OpenstackApiRegistry.release(api1);
+
+        // Not used anymore (closed)
+        OpenstackApiRegistry.release(api2);
+        OpenstackApiRegistry.release(other);
+        OpenstackApi api3 = OpenstackApiRegistry.acquire(ENDPOINT, "default:tenant:user", "password", "region1");
+        Assert.assertNotSame(api3, api1);
+        OpenstackApiRegistry.release(api3);
+    }
+
+    @Test
+    public void testLinger() {
+        TeamCityPropertiesMock.addProperty(OpenstackApiRegistry.API_LINGER_KEY, "60");
+
+        // Profile reload: released, then acquired again
+        OpenstackApi api1 = OpenstackApiRegistry.acquire(ENDPOINT, "default:tenant:user", "password", "region3");
+        OpenstackApiRegistry.release(api1);
+        OpenstackApi api2 = OpenstackApiRegistry.acquire(ENDPOINT, "default:tenant:user", "password", "region3");
+        Assert.assertSame(api2, api1);
+
+        // Password changed => new api
+        OpenstackApi api3 = OpenstackApiRegistry.acquire(ENDPOINT, "default:tenant:user", "new-password", "region3");
+        Assert.assertNotSame(api3, api1);
+        OpenstackApiRegistry.release(api2);
+        OpenstackApiRegistry.release(api3);
+    }
+
+}
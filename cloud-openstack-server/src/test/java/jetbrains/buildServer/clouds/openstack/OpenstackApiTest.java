@@ -25,4 +25,15 @@ public class OpenstackApiTest {
         Assert.assertEquals(OpenstackApi.getKeystoneVersion("https://my.openstack.org:42/v2.0"), "2");
     }
 
+    @Test
+    public void testSharedExecutorNotClosedWithApi() {
+        OpenstackApi api1 = new OpenstackApi("http://localhost:1/v3", "tenant:domain:user", "password", "region");
+        OpenstackApi api2 = new OpenstackApi("http://localhost:2/v3", "tenant:domain:user", "password", "region");
+        api1.close();
+        Assert.assertFalse(OpenstackApi.SharedExecutors.USER.isShutdown());
+        api2.close();
+        Assert.assertFalse(OpenstackApi.SharedExecutors.USER.isShutdown());
+        Assert.assertEquals(OpenstackApi.SharedExecutors.USER.getMaximumPoolSize(), OpenstackApi.JCLOUDS_USER_THREADS_DEFAULT_VALUE);
+    }
+
 }
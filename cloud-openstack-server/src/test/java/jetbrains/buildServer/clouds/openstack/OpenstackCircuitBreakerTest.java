@@ -0,0 +1,157 @@
+package jetbrains.buildServer.clouds.openstack;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jclouds.http.HttpResponse;
+import org.jclouds.http.HttpResponseException;
+import org.jclouds.rest.AuthorizationException;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import jetbrains.buildServer.serverSide.TeamCityPropertiesMock;
+
+public class OpenstackCircuitBreakerTest {
+
+    private final AtomicInteger probes = new AtomicInteger();
+    private final AtomicBoolean down = new AtomicBoolean();
+    // Thrown by probe instead of calling OpenStack, if any
+    private volatile Throwable probeFailure;
+    private OpenstackCircuitBreaker breaker;
+
+    @BeforeMethod
+    public void setUp() {
+        TeamCityPropertiesMock.addProperty(OpenstackCircuitBreaker.CIRCUIT_FAILURES_KEY, "3");
+        TeamCityPropertiesMock.addProperty(OpenstackCircuitBreaker.CIRCUIT_OPEN_KEY, "1");
+        probes.set(0);
+        down.set(true);
+        probeFailure = null;
+        breaker = new OpenstackCircuitBreaker("test", () -> {
+            probes.incrementAndGet();
+            if (probeFailure instanceof Error) {
+                throw (Error) probeFailure;
+            }
+            if (probeFailure != null) {
+                throw (RuntimeException) probeFailure;
+            }
+            call();
+        });
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        TeamCityPropertiesMock.reset();
+    }
+
+    private static HttpResponseException httpError(int status) {
+        return new HttpResponseException("error", null, HttpResponse.builder().statusCode(status).build());
+    }
+
+    private String call() {
+        if (down.get()) {
+            throw new HttpResponseException("connection refused", null, null, new IOException("connection refused"));
+        }
+        return "ok";
+    }
+
+    private void failures(int count) {
+        for (int i = 0; i < count; i++) {
+            Assert.assertThrows(HttpResponseException.class, () -> breaker.call(this::call));
+        }
+    }
+
+    @Test
+    public void testOutageClassification() {
+        Assert.assertTrue(OpenstackCircuitBreaker.isOutage(httpError(500)));
+        Assert.assertTrue(OpenstackCircuitBreaker.isOutage(httpError(503)));
+        Assert.assertTrue(OpenstackCircuitBreaker.isOutage(new IllegalStateException(new IOException("timeout"))));
+        Assert.assertFalse(OpenstackCircuitBreaker.isOutage(httpError(404)));
+        Assert.assertFalse(OpenstackCircuitBreaker.isOutage(new AuthorizationException("expired", httpError(401))));
+        Assert.assertFalse(OpenstackCircuitBreaker.isOutage(new IllegalArgumentException("bad request")));
+        // Throttled
+        Assert.assertFalse(OpenstackCircuitBreaker.isOutage(new HttpResponseException("over limit", null,
+                HttpResponse.builder().statusCode(503).addHeader("Retry-After", "5").build())));
+    }
+
+    @Test
+    public void testOpenAndRecover() throws Exception {
+        failures(3);
+        Assert.assertEquals(breaker.getState(), OpenstackCircuitBreaker.State.OPEN);
+        Assert.assertFalse(breaker.isAvailable());
+
+        // Fail fast, OpenStack not called
+        down.set(false);
+        Assert.assertThrows(OpenstackCircuitBreaker.CircuitOpenException.class, () -> breaker.call(this::call));
+        Assert.assertEquals(probes.get(), 0);
+
+        // Probe on first call once open delay is elapsed
+        Thread.sleep(1100);
+        Assert.assertTrue(breaker.isAvailable());
+        Assert.assertEquals(breaker.call(this::call), "ok");
+        Assert.assertEquals(probes.get(), 1);
+        Assert.assertEquals(breaker.getState(), OpenstackCircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void testProbeFailureReopens() throws Exception {
+        failures(3);
+        Thread.sleep(1100);
+        Assert.assertThrows(OpenstackCircuitBreaker.CircuitOpenException.class, () -> breaker.call(this::call));
+        Assert.assertEquals(probes.get(), 1);
+        Assert.assertEquals(breaker.getState(), OpenstackCircuitBreaker.State.OPEN);
+        Assert.assertFalse(breaker.isAvailable());
+    }
+
+    @Test
+    public void testClientErrorsNotCounted() {
+        failures(2);
+        for (int i = 0; i < 5; i++) {
+            Assert.assertThrows(HttpResponseException.class, () -> breaker.call(() -> {
+                throw httpError(404);
+            }));
+        }
+        // Consecutive outage failures only
+        failures(2);
+        Assert.assertEquals(breaker.getState(), OpenstackCircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void testThrottlingNotCounted() {
+        for (int i = 0; i < 5; i++) {
+            Assert.assertThrows(OpenstackRateLimiter.OverLimitException.class, () -> breaker.call(() -> {
+                throw new OpenstackRateLimiter.OverLimitException("over limit", 1000, httpError(503));
+            }));
+            Assert.assertThrows(OpenstackRateLimiter.OverLimitException.class, () -> breaker.call(() -> {
+                throw new OpenstackRateLimiter.OverLimitException("rate limit", 1000, null);
+            }));
+        }
+        Assert.assertEquals(breaker.getState(), OpenstackCircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void testProbeNotReachingOpenstackReopens() throws Exception {
+        failures(3);
+        Thread.sleep(1100);
+        // Refused by local rate limit: no proof of availability
+        probeFailure = new OpenstackRateLimiter.OverLimitException("rate limit", 1000, null);
+        Assert.assertThrows(OpenstackCircuitBreaker.CircuitOpenException.class, () -> breaker.call(this::call));
+        Assert.assertEquals(breaker.getState(), OpenstackCircuitBreaker.State.OPEN);
+
+        // Unexpected error: not left half-open
+        Thread.sleep(1100);
+        probeFailure = new NoClassDefFoundError("probe");
+        Assert.assertThrows(NoClassDefFoundError.class, () -> breaker.call(this::call));
+        Assert.assertEquals(breaker.getState(), OpenstackCircuitBreaker.State.OPEN);
+
+        // Answered by OpenStack
+        Thread.sleep(1100);
+        probeFailure = new AuthorizationException("expired", httpError(401));
+        down.set(false);
+        Assert.assertEquals(breaker.call(this::call), "ok");
+        Assert.assertEquals(breaker.getState(), OpenstackCircuitBreaker.State.CLOSED);
+        Assert.assertEquals(probes.get(), 3);
+    }
+}
@@ -3,12 +3,22 @@ package jetbrains.buildServer.clouds.openstack;
 import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
 import static com.github.tomakehurst.wiremock.client.WireMock.delete;
 import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.post;
 import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlPathEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.verify;
 import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.io.FileUtils;
 import org.mockito.Mockito;
@@ -47,8 +57,8 @@ public class OpenstackCloudClientMockedTest extends AbstractTestOpenstackCloudCl
         System.out.println(model);
 
         // Accelerate a little the Mocked unit test
-        TeamCityPropertiesMock.addProperty(OpenstackCloudImage.DELAY_STATUS_INITIAL_KEY, "3");
-        TeamCityPropertiesMock.addProperty(OpenstackCloudImage.DELAY_STATUS_DELAY_KEY, "3");
+        TeamCityPropertiesMock.addProperty(OpenstackCloudClient.DELAY_STATUS_INITIAL_KEY, "3");
+        TeamCityPropertiesMock.addProperty(OpenstackCloudClient.DELAY_STATUS_DELAY_KEY, "3");
     }
 
     @AfterMethod
@@ -94,36 +104,33 @@ public class OpenstackCloudClientMockedTest extends AbstractTestOpenstackCloudCl
     public void testTokenExpirationDoNotRemoveAgent() throws Exception {
         initVMStart();
 
-        // First call is for cloud profile creation => "empty" (not status for VM created)
-        stubFor(get("/v2.1/nova-id/servers/detail").inScenario(SCENARIO).whenScenarioStateIs(Scenario.STARTED).willSetStateTo("profilecreation")
+        // First call is for VMs restoration (profile initialization) => "empty" (not status for VM created)
+        stubFor(get(urlPathEqualTo("/v2.1/nova-id/servers/detail")).inScenario(SCENARIO).whenScenarioStateIs(Scenario.STARTED).willSetStateTo(SCENARIO_STATE_INIT)
                 .willReturn(aResponse().withBodyFile("v2.1-nova-id-servers-detail-empty.json")));
-        // Second call is for VMs restoration => "empty" (not status for VM created)
-        stubFor(get("/v2.1/nova-id/servers/detail").inScenario(SCENARIO).whenScenarioStateIs("profilecreation").willSetStateTo(SCENARIO_STATE_INIT)
-                .willReturn(aResponse().withBodyFile("v2.1-nova-id-servers-detail-empty.json")));
-        stubFor(get("/v2.1/nova-id/servers/detail").inScenario(SCENARIO).whenScenarioStateIs(SCENARIO_STATE_INIT).willSetStateTo(SCENARIO_STATE_RUN)
+        stubFor(get(urlPathEqualTo("/v2.1/nova-id/servers/detail")).inScenario(SCENARIO).whenScenarioStateIs(SCENARIO_STATE_INIT).willSetStateTo(SCENARIO_STATE_RUN)
                 .willReturn(aResponse().withBodyFile("v2.1-nova-id-servers-detail-build.json")));
-        stubFor(get("/v2.1/nova-id/servers/detail").inScenario(SCENARIO).whenScenarioStateIs(SCENARIO_STATE_RUN).willSetStateTo("tokenExpired1")
+        stubFor(get(urlPathEqualTo("/v2.1/nova-id/servers/detail")).inScenario(SCENARIO).whenScenarioStateIs(SCENARIO_STATE_RUN).willSetStateTo("tokenExpired1")
                 .willReturn(aResponse().withBodyFile("v2.1-nova-id-servers-detail-run.json")));
 
         // Introduce authentication problem in status request (multiple, to deal with retry-mechanism)
         final String msg401 = "{\"error\": {\"code\": 401, \"title\": \"Unauthorized\", \"message\": \"The request you have made requires authentication.\"}}";
-        stubFor(get("/v2.1/nova-id/servers/detail").inScenario(SCENARIO).whenScenarioStateIs("tokenExpired1").willSetStateTo("tokenExpired2")
+        stubFor(get(urlPathEqualTo("/v2.1/nova-id/servers/detail")).inScenario(SCENARIO).whenScenarioStateIs("tokenExpired1").willSetStateTo("tokenExpired2")
                 .willReturn(aResponse().withStatus(401).withBody(msg401)));
-        stubFor(get("/v2.1/nova-id/servers/detail").inScenario(SCENARIO).whenScenarioStateIs("tokenExpired2").willSetStateTo("tokenExpired3")
+        stubFor(get(urlPathEqualTo("/v2.1/nova-id/servers/detail")).inScenario(SCENARIO).whenScenarioStateIs("tokenExpired2").willSetStateTo("tokenExpired3")
                 .willReturn(aResponse().withStatus(401).withBody(msg401)));
-        stubFor(get("/v2.1/nova-id/servers/detail").inScenario(SCENARIO).whenScenarioStateIs("tokenExpired3").willSetStateTo("tokenExpired4")
+        stubFor(get(urlPathEqualTo("/v2.1/nova-id/servers/detail")).inScenario(SCENARIO).whenScenarioStateIs("tokenExpired3").willSetStateTo("tokenExpired4")
                 .willReturn(aResponse().withStatus(401).withBody(msg401)));
-        stubFor(get("/v2.1/nova-id/servers/detail").inScenario(SCENARIO).whenScenarioStateIs("tokenExpired4").willSetStateTo("tokenExpired5")
+        stubFor(get(urlPathEqualTo("/v2.1/nova-id/servers/detail")).inScenario(SCENARIO).whenScenarioStateIs("tokenExpired4").willSetStateTo("tokenExpired5")
                 .willReturn(aResponse().withStatus(401).withBody(msg401)));
-        stubFor(get("/v2.1/nova-id/servers/detail").inScenario(SCENARIO).whenScenarioStateIs("tokenExpired5").willSetStateTo("run2")
+        stubFor(get(urlPathEqualTo("/v2.1/nova-id/servers/detail")).inScenario(SCENARIO).whenScenarioStateIs("tokenExpired5").willSetStateTo("run2")
                 .willReturn(aResponse().withStatus(401).withBody(msg401)));
 
         // Following request is a classic run
-        stubFor(get("/v2.1/nova-id/servers/detail").inScenario(SCENARIO).whenScenarioStateIs("run2").willSetStateTo("stopping")
+        stubFor(get(urlPathEqualTo("/v2.1/nova-id/servers/detail")).inScenario(SCENARIO).whenScenarioStateIs("run2").willSetStateTo("stopping")
                 .willReturn(aResponse().withBodyFile("v2.1-nova-id-servers-detail-run.json")));
-        stubFor(get("/v2.1/nova-id/servers/detail").inScenario(SCENARIO).whenScenarioStateIs("stopping").willSetStateTo("stopped")
+        stubFor(get(urlPathEqualTo("/v2.1/nova-id/servers/detail")).inScenario(SCENARIO).whenScenarioStateIs("stopping").willSetStateTo("stopped")
                 .willReturn(aResponse().withBodyFile("v2.1-nova-id-servers-detail-stopping.json")));
-        stubFor(get("/v2.1/nova-id/servers/detail").inScenario(SCENARIO).whenScenarioStateIs("stopped")
+        stubFor(get(urlPathEqualTo("/v2.1/nova-id/servers/detail")).inScenario(SCENARIO).whenScenarioStateIs("stopped")
                 .willReturn(aResponse().withBodyFile("v2.1-nova-id-servers-detail-stopped.json")));
 
         // POST, do not add the content (should be ~"{ \"os-stop\" : null \"}" but only /action is a stop in scenario)
@@ -140,15 +147,15 @@ public class OpenstackCloudClientMockedTest extends AbstractTestOpenstackCloudCl
         initVMStart();
 
         // First call with VM already exist ... in other call the status will not exist
-        stubFor(get("/v2.1/nova-id/servers/detail").inScenario(SCENARIO).whenScenarioStateIs(Scenario.STARTED).willSetStateTo(SCENARIO_STATE_INIT)
+        stubFor(get(urlPathEqualTo("/v2.1/nova-id/servers/detail")).inScenario(SCENARIO).whenScenarioStateIs(Scenario.STARTED).willSetStateTo(SCENARIO_STATE_INIT)
                 .willReturn(aResponse().withBodyFile("v2.1-nova-id-servers-detail-restore.json")));
-        stubFor(get("/v2.1/nova-id/servers/detail").inScenario(SCENARIO).whenScenarioStateIs(SCENARIO_STATE_INIT).willSetStateTo(SCENARIO_STATE_RUN)
+        stubFor(get(urlPathEqualTo("/v2.1/nova-id/servers/detail")).inScenario(SCENARIO).whenScenarioStateIs(SCENARIO_STATE_INIT).willSetStateTo(SCENARIO_STATE_RUN)
                 .willReturn(aResponse().withBodyFile("v2.1-nova-id-servers-detail-build.json")));
-        stubFor(get("/v2.1/nova-id/servers/detail").inScenario(SCENARIO).whenScenarioStateIs(SCENARIO_STATE_RUN).willSetStateTo("stopping")
+        stubFor(get(urlPathEqualTo("/v2.1/nova-id/servers/detail")).inScenario(SCENARIO).whenScenarioStateIs(SCENARIO_STATE_RUN).willSetStateTo("stopping")
                 .willReturn(aResponse().withBodyFile("v2.1-nova-id-servers-detail-run.json")));
-        stubFor(get("/v2.1/nova-id/servers/detail").inScenario(SCENARIO).whenScenarioStateIs("stopping").willSetStateTo("stopped")
+        stubFor(get(urlPathEqualTo("/v2.1/nova-id/servers/detail")).inScenario(SCENARIO).whenScenarioStateIs("stopping").willSetStateTo("stopped")
                 .willReturn(aResponse().withBodyFile("v2.1-nova-id-servers-detail-stopping.json")));
-        stubFor(get("/v2.1/nova-id/servers/detail").inScenario(SCENARIO).whenScenarioStateIs("stopped")
+        stubFor(get(urlPathEqualTo("/v2.1/nova-id/servers/detail")).inScenario(SCENARIO).whenScenarioStateIs("stopped")
                 .willReturn(aResponse().withBodyFile("v2.1-nova-id-servers-detail-stopped.json")));
 
         // POST, do not add the content (should be ~"{ \"os-stop\" : null \"}" but only /action is a stop in scenario)
@@ -164,17 +171,17 @@ public class OpenstackCloudClientMockedTest extends AbstractTestOpenstackCloudCl
         initVMStart();
 
         // First call is for VMs restoration => "empty" (not status for VM created)
-        stubFor(get("/v2.1/nova-id/servers/detail").inScenario(SCENARIO).whenScenarioStateIs(Scenario.STARTED).willSetStateTo(SCENARIO_STATE_INIT)
+        stubFor(get(urlPathEqualTo("/v2.1/nova-id/servers/detail")).inScenario(SCENARIO).whenScenarioStateIs(Scenario.STARTED).willSetStateTo(SCENARIO_STATE_INIT)
                 .willReturn(aResponse().withBodyFile("v2.1-nova-id-servers-detail-empty.json")));
-        stubFor(get("/v2.1/nova-id/servers/detail").inScenario(SCENARIO).whenScenarioStateIs(SCENARIO_STATE_INIT).willSetStateTo(SCENARIO_STATE_RUN)
+        stubFor(get(urlPathEqualTo("/v2.1/nova-id/servers/detail")).inScenario(SCENARIO).whenScenarioStateIs(SCENARIO_STATE_INIT).willSetStateTo(SCENARIO_STATE_RUN)
                 .willReturn(aResponse().withBodyFile("v2.1-nova-id-servers-detail-build.json")));
-        stubFor(get("/v2.1/nova-id/servers/detail").inScenario(SCENARIO).whenScenarioStateIs(SCENARIO_STATE_RUN).willSetStateTo("stopping1")
+        stubFor(get(urlPathEqualTo("/v2.1/nova-id/servers/detail")).inScenario(SCENARIO).whenScenarioStateIs(SCENARIO_STATE_RUN).willSetStateTo("stopping1")
                 .willReturn(aResponse().withBodyFile("v2.1-nova-id-servers-detail-run.json")));
-        stubFor(get("/v2.1/nova-id/servers/detail").inScenario(SCENARIO).whenScenarioStateIs("stopping1").willSetStateTo("stopping2")
+        stubFor(get(urlPathEqualTo("/v2.1/nova-id/servers/detail")).inScenario(SCENARIO).whenScenarioStateIs("stopping1").willSetStateTo("stopping2")
                 .willReturn(aResponse().withBodyFile("v2.1-nova-id-servers-detail-stopping.json")));
-        stubFor(get("/v2.1/nova-id/servers/detail").inScenario(SCENARIO).whenScenarioStateIs("stopping2").willSetStateTo("stopped")
+        stubFor(get(urlPathEqualTo("/v2.1/nova-id/servers/detail")).inScenario(SCENARIO).whenScenarioStateIs("stopping2").willSetStateTo("stopped")
                 .willReturn(aResponse().withBodyFile("v2.1-nova-id-servers-detail-stopping.json")));
-        stubFor(get("/v2.1/nova-id/servers/detail").inScenario(SCENARIO).whenScenarioStateIs("stopped")
+        stubFor(get(urlPathEqualTo("/v2.1/nova-id/servers/detail")).inScenario(SCENARIO).whenScenarioStateIs("stopped")
                 .willReturn(aResponse().withBodyFile("v2.1-nova-id-servers-detail-stopped.json")));
 
         // POST, do not add the content (should be ~"{ \"os-stop\" : null \"}" but only /action is a stop in scenario)
@@ -190,7 +197,7 @@ public class OpenstackCloudClientMockedTest extends AbstractTestOpenstackCloudCl
         initVMStart();
 
         // Empty status for created instance
-        stubFor(get("/v2.1/nova-id/servers/detail").willReturn(aResponse().withBodyFile("v2.1-nova-id-servers-detail-empty.json")));
+        stubFor(get(urlPathEqualTo("/v2.1/nova-id/servers/detail")).willReturn(aResponse().withBodyFile("v2.1-nova-id-servers-detail-empty.json")));
 
         // /action is a stop in testSubSimple scenario (should be here even if not called in real life)
         stubFor(post("/v2.1/nova-id/servers/server-id/action").willReturn(aResponse().withStatus(202)));
@@ -208,9 +215,9 @@ public class OpenstackCloudClientMockedTest extends AbstractTestOpenstackCloudCl
     public void testErrorStop() throws Exception {
         initVMStart();
         // State 'RUN' indefinitely even if stop engaged
-        stubFor(get("/v2.1/nova-id/servers/detail").inScenario(SCENARIO).whenScenarioStateIs(Scenario.STARTED).willSetStateTo(SCENARIO_STATE_RUN)
+        stubFor(get(urlPathEqualTo("/v2.1/nova-id/servers/detail")).inScenario(SCENARIO).whenScenarioStateIs(Scenario.STARTED).willSetStateTo(SCENARIO_STATE_RUN)
                 .willReturn(aResponse().withBodyFile("v2.1-nova-id-servers-detail-empty.json")));
-        stubFor(get("/v2.1/nova-id/servers/detail").inScenario(SCENARIO).whenScenarioStateIs(SCENARIO_STATE_RUN).willSetStateTo(SCENARIO_STATE_RUN)
+        stubFor(get(urlPathEqualTo("/v2.1/nova-id/servers/detail")).inScenario(SCENARIO).whenScenarioStateIs(SCENARIO_STATE_RUN).willSetStateTo(SCENARIO_STATE_RUN)
                 .willReturn(aResponse().withBodyFile("v2.1-nova-id-servers-detail-run.json")));
 
         // POST, do not add the content
@@ -230,17 +237,17 @@ public class OpenstackCloudClientMockedTest extends AbstractTestOpenstackCloudCl
         initVMStart();
 
         // First call is for VMs restoration => "empty" (not status for VM created)
-        stubFor(get("/v2.1/nova-id/servers/detail").inScenario(SCENARIO).whenScenarioStateIs(Scenario.STARTED).willSetStateTo(SCENARIO_STATE_INIT)
+        stubFor(get(urlPathEqualTo("/v2.1/nova-id/servers/detail")).inScenario(SCENARIO).whenScenarioStateIs(Scenario.STARTED).willSetStateTo(SCENARIO_STATE_INIT)
                 .willReturn(aResponse().withBodyFile("v2.1-nova-id-servers-detail-empty.json")));
-        stubFor(get("/v2.1/nova-id/servers/detail").inScenario(SCENARIO).whenScenarioStateIs(SCENARIO_STATE_INIT).willSetStateTo(SCENARIO_STATE_RUN)
+        stubFor(get(urlPathEqualTo("/v2.1/nova-id/servers/detail")).inScenario(SCENARIO).whenScenarioStateIs(SCENARIO_STATE_INIT).willSetStateTo(SCENARIO_STATE_RUN)
                 .willReturn(aResponse().withBodyFile("v2.1-nova-id-servers-detail-build.json")));
-        stubFor(get("/v2.1/nova-id/servers/detail").inScenario(SCENARIO).whenScenarioStateIs(SCENARIO_STATE_RUN).willSetStateTo("stopping1")
+        stubFor(get(urlPathEqualTo("/v2.1/nova-id/servers/detail")).inScenario(SCENARIO).whenScenarioStateIs(SCENARIO_STATE_RUN).willSetStateTo("stopping1")
                 .willReturn(aResponse().withBodyFile("v2.1-nova-id-servers-detail-run.json")));
-        stubFor(get("/v2.1/nova-id/servers/detail").inScenario(SCENARIO).whenScenarioStateIs("stopping1").willSetStateTo("stopping2")
+        stubFor(get(urlPathEqualTo("/v2.1/nova-id/servers/detail")).inScenario(SCENARIO).whenScenarioStateIs("stopping1").willSetStateTo("stopping2")
                 .willReturn(aResponse().withBodyFile("v2.1-nova-id-servers-detail-stopping.json")));
-        stubFor(get("/v2.1/nova-id/servers/detail").inScenario(SCENARIO).whenScenarioStateIs("stopping2").willSetStateTo("stopped")
+        stubFor(get(urlPathEqualTo("/v2.1/nova-id/servers/detail")).inScenario(SCENARIO).whenScenarioStateIs("stopping2").willSetStateTo("stopped")
                 .willReturn(aResponse().withBodyFile("v2.1-nova-id-servers-detail-stopping.json")));
-        stubFor(get("/v2.1/nova-id/servers/detail").inScenario(SCENARIO).whenScenarioStateIs("stopped").willSetStateTo("stopped")
+        stubFor(get(urlPathEqualTo("/v2.1/nova-id/servers/detail")).inScenario(SCENARIO).whenScenarioStateIs("stopped").willSetStateTo("stopped")
                 .willReturn(aResponse().withBodyFile("v2.1-nova-id-servers-detail-stopped.json")));
 
         // POST, do not add the content (should be ~"{ \"os-stop\" : null \"}" but only /action is a stop in scenario)
@@ -260,11 +267,11 @@ public class OpenstackCloudClientMockedTest extends AbstractTestOpenstackCloudCl
         initVMStart();
 
         // First call is for VMs restoration => "empty" (not status for VM created)
-        stubFor(get("/v2.1/nova-id/servers/detail").inScenario(SCENARIO).whenScenarioStateIs(Scenario.STARTED).willSetStateTo(SCENARIO_STATE_INIT)
+        stubFor(get(urlPathEqualTo("/v2.1/nova-id/servers/detail")).inScenario(SCENARIO).whenScenarioStateIs(Scenario.STARTED).willSetStateTo(SCENARIO_STATE_INIT)
                 .willReturn(aResponse().withBodyFile("v2.1-nova-id-servers-detail-empty.json")));
 
         // OpenStack response with a content without 'id' => will throw NPE on update status
-        stubFor(get("/v2.1/nova-id/servers/detail").inScenario(SCENARIO).whenScenarioStateIs(SCENARIO_STATE_INIT).willSetStateTo(SCENARIO_STATE_INIT)
+        stubFor(get(urlPathEqualTo("/v2.1/nova-id/servers/detail")).inScenario(SCENARIO).whenScenarioStateIs(SCENARIO_STATE_INIT).willSetStateTo(SCENARIO_STATE_INIT)
                 .willReturn(aResponse().withBodyFile("v2.1-nova-id-servers-detail-not-defined.json")));
 
         // Termination due to NPE + unit 'testSubSimple' termination
@@ -284,11 +291,11 @@ public class OpenstackCloudClientMockedTest extends AbstractTestOpenstackCloudCl
         initVMStart();
 
         // First empty details for cloud profile creation
-        stubFor(get("/v2.1/nova-id/servers/detail").inScenario(SCENARIO).whenScenarioStateIs(Scenario.STARTED).willSetStateTo(SCENARIO_STATE_INIT)
+        stubFor(get(urlPathEqualTo("/v2.1/nova-id/servers/detail")).inScenario(SCENARIO).whenScenarioStateIs(Scenario.STARTED).willSetStateTo(SCENARIO_STATE_INIT)
                 .willReturn(aResponse().withBodyFile("v2.1-nova-id-servers-detail-empty.json")));
 
         // Bad response (no id) on every call (restore, status update, ...)
-        stubFor(get("/v2.1/nova-id/servers/detail").inScenario(SCENARIO).whenScenarioStateIs(SCENARIO_STATE_INIT)
+        stubFor(get(urlPathEqualTo("/v2.1/nova-id/servers/detail")).inScenario(SCENARIO).whenScenarioStateIs(SCENARIO_STATE_INIT)
                 .willReturn(aResponse().withBodyFile("v2.1-nova-id-servers-detail-not-defined.json")));
 
         // Termination due to NPE + unit 'testSubSimple' termination
@@ -303,4 +310,66 @@ public class OpenstackCloudClientMockedTest extends AbstractTestOpenstackCloudCl
         // verify(deleteRequestedFor(urlMatching("/v2.1/nova-id/servers/server-id")));
     }
 
+    @Test
+    public void testResolutionCache() throws Exception {
+        initVMStart();
+        OpenstackApi api = new OpenstackApi(wireMockServer.baseUrl() + "/v3", "default:my-tenant:ldap:foo", "bar", "region1");
+
+        // Concurrent resolutions of a same name share one request, next ones are cached
+        ExecutorService pool = Executors.newFixedThreadPool(5);
+        List<Future<String>> ids = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            ids.add(pool.submit(() -> api.getImageIdByName("Ubuntu")));
+        }
+        for (Future<String> id : ids) {
+            Assert.assertEquals(id.get(), "image-id");
+        }
+        pool.shutdown();
+        Assert.assertEquals(api.getImageIdByName("Ubuntu"), "image-id");
+        verify(1, getRequestedFor(urlEqualTo("/v2.1/nova-id/images/detail")));
+
+        // Not found is cached (misconfigured profile), other names are resolved from the same catalog
+        Assert.assertNull(api.getFlavorIdByName("unknown"));
+        Assert.assertNull(api.getFlavorIdByName("unknown"));
+        Assert.assertEquals(api.getFlavorIdByName("large.c8"), "flavor-id");
+        verify(1, getRequestedFor(urlEqualTo("/v2.1/nova-id/flavors/detail")));
+
+        // Not found reloads the catalog once the miss is expired (resource possibly created since)
+        TeamCityPropertiesMock.addProperty(OpenstackApi.CACHE_MISS_TTL_KEY, "0");
+        Thread.sleep(10);
+        Assert.assertNull(api.getFlavorIdByName("unknown"));
+        Assert.assertEquals(api.getFlavorIdByName("large.c8"), "flavor-id");
+        verify(2, getRequestedFor(urlEqualTo("/v2.1/nova-id/flavors/detail")));
+    }
+
+    @Test
+    public void testServersNameFilter() {
+        String filter = OpenstackCloudClient.getServersNameFilter(Arrays.asList("my-image_1", "other.image"));
+        Assert.assertEquals(filter, "^(my-image_1|other[.]image)-[0-9]+$");
+        Assert.assertTrue("other.image-12".matches(filter));
+        Assert.assertFalse("otherXimage-12".matches(filter));
+        Assert.assertFalse("my-image_1-12-copy".matches(filter));
+    }
+
+    @Test
+    public void testInitialization() throws Exception {
+        initVMStart();
+        stubFor(get(urlPathEqualTo("/v2.1/nova-id/servers/detail")).willReturn(aResponse().withBodyFile("v2.1-nova-id-servers-detail-empty.json")));
+
+        OpenstackCloudClient client = getClient(wireMockServer.baseUrl() + "/v3", "default:my-tenant:ldap:foo", "bar", "region1", getTestYaml("Mock"));
+        long end = System.currentTimeMillis() + 10000;
+        while (!client.isInitialized() && System.currentTimeMillis() < end) {
+            Thread.sleep(50);
+        }
+        Assert.assertTrue(client.isInitialized());
+        Assert.assertNull(client.getImages().iterator().next().getErrorInfo());
+
+        // Each catalog listed once, whatever images count
+        verify(1, getRequestedFor(urlEqualTo("/v2.1/nova-id/images/detail")));
+        verify(1, getRequestedFor(urlEqualTo("/v2.1/nova-id/flavors/detail")));
+        verify(1, getRequestedFor(urlEqualTo("/v2.0/networks")));
+        verify(1, getRequestedFor(urlPathEqualTo("/v2.1/nova-id/servers/detail")));
+        client.dispose();
+    }
+
 }
@@ -0,0 +1,236 @@
+package jetbrains.buildServer.clouds.openstack;
+
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.apache.commons.io.FileUtils;
+import org.jclouds.openstack.nova.v2_0.domain.Address;
+import org.jclouds.openstack.nova.v2_0.domain.Server;
+import org.jclouds.openstack.nova.v2_0.options.CreateServerOptions;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableMultimap;
+
+import jetbrains.buildServer.clouds.CloudInstanceUserData;
+import jetbrains.buildServer.clouds.InstanceStatus;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.serverSide.TeamCityPropertiesMock;
+
+public class OpenstackCloudImageTest {
+
+    private ScheduledExecutorService executor;
+    private OpenstackCloudImage image;
+    private OpenstackInstanceJournal journal;
+    private boolean propertiesMocked = false;
+
+    @BeforeMethod
+    public void setUp() {
+        executor = Executors.newSingleThreadScheduledExecutor();
+        // Launches are only queued (pipeline mocked): instances stay scheduled to start
+        image = new OpenstackCloudImage(mock(OpenstackApi.class), "profile", "image", "image", "os-image", "flavor", null, false, 2, false, false,
+                mock(OpenstackFloatingIpPool.class), new CreateServerOptions(), null, mock(ServerPaths.class), executor,
+                mock(OpenstackLaunchPipeline.class), new OpenstackInstanceIndex(), journal = mock(OpenstackInstanceJournal.class));
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        if (propertiesMocked) {
+            TeamCityPropertiesMock.reset();
+            propertiesMocked = false;
+        }
+        executor.shutdownNow();
+    }
+
+    private CloudInstanceUserData createUserData() {
+        return new CloudInstanceUserData("agent", "token", "http://teamcity", null, "profile", "description", new HashMap<>());
+    }
+
+    @Test
+    public void testStandbyPool() {
+        // Not armed before first demand
+        Assert.assertFalse(image.needsStandbyInstance());
+
+        OpenstackCloudInstance cold = image.startNewInstance(createUserData());
+        Assert.assertFalse(cold.isStandby());
+        Assert.assertTrue(image.needsStandbyInstance());
+        image.startStandbyInstance();
+        image.startStandbyInstance();
+        Assert.assertFalse(image.needsStandbyInstance());
+        Assert.assertEquals(image.getStandbyCount(), 2);
+        Assert.assertEquals(image.getInstancesCount(), 3);
+
+        // Most advanced launch handed out first
+        OpenstackCloudInstance running = null;
+        for (OpenstackCloudInstance instance : image.getInstances()) {
+            if (instance.isStandby()) {
+                running = instance;
+            }
+        }
+        Assert.assertNotNull(running);
+        running.setStatus(InstanceStatus.RUNNING);
+        Assert.assertSame(image.startNewInstance(createUserData()), running);
+        Assert.assertFalse(running.isStandby());
+        Assert.assertEquals(image.getStandbyCount(), 1);
+        Assert.assertEquals(image.getInstancesCount(), 3);
+        Assert.assertTrue(image.needsStandbyInstance());
+    }
+
+    @Test
+    public void testStandbyTrimmedWhenIdle() throws Exception {
+        image.startNewInstance(createUserData());
+        image.startStandbyInstance();
+        OpenstackCloudInstance standby = null;
+        for (OpenstackCloudInstance instance : image.getInstances()) {
+            if (instance.isStandby()) {
+                standby = instance;
+            }
+        }
+        Assert.assertNotNull(standby);
+        standby.setStatus(InstanceStatus.RUNNING);
+        Assert.assertTrue(image.trimStandby().isEmpty());
+        Assert.assertTrue(standby.isStandby());
+
+        TeamCityPropertiesMock.addProperty(OpenstackCloudImage.STANDBY_IDLE_KEY, "0");
+        propertiesMocked = true;
+        Thread.sleep(10);
+        Assert.assertFalse(image.needsStandbyInstance());
+        // Taken out of the pool, stopped by caller
+        Assert.assertEquals(image.trimStandby(), Collections.singletonList(standby));
+        Assert.assertFalse(standby.isStandby());
+        Assert.assertEquals(image.getStandbyCount(), 0);
+    }
+
+    @Test
+    public void testStandbyBackoffAfterFailure() throws Exception {
+        image.startNewInstance(createUserData());
+        Assert.assertTrue(image.needsStandbyInstance());
+        image.standbyFailed();
+        Assert.assertFalse(image.needsStandbyInstance());
+        image.standbyStarted();
+        Assert.assertTrue(image.needsStandbyInstance());
+
+        TeamCityPropertiesMock.addProperty(OpenstackCloudImage.STANDBY_BACKOFF_KEY, "0");
+        propertiesMocked = true;
+        image.standbyFailed();
+        Thread.sleep(10);
+        Assert.assertTrue(image.needsStandbyInstance());
+    }
+
+    @Test
+    public void testInstancesInTransition() {
+        Assert.assertFalse(image.hasInstancesInTransition());
+        OpenstackCloudInstance instance = image.startNewInstance(createUserData());
+        Assert.assertTrue(image.hasInstancesInTransition());
+        instance.setStatus(InstanceStatus.RUNNING);
+        Assert.assertFalse(image.hasInstancesInTransition());
+        instance.setStatus(InstanceStatus.STOPPING);
+        Assert.assertTrue(image.hasInstancesInTransition());
+    }
+
+    // Journal entries of a previous server run: launch 1 interrupted before server creation, launch 2 completed
+    private Collection<OpenstackInstanceJournal.Entry> loadJournal() throws IOException {
+        final File dir = Files.createTempDirectory("journal").toFile();
+        try {
+            final OpenstackInstanceJournal journal = new OpenstackInstanceJournal(new File(dir, "profile.journal"));
+            journal.launched("image", "1", 1000);
+            journal.launched("image", "2", 2000);
+            journal.serverCreated("image", "2", "server-2", null);
+            journal.close();
+            return new OpenstackInstanceJournal(new File(dir, "profile.journal")).load();
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    private static Server server(String id, String name) {
+        Server server = mock(Server.class);
+        when(server.getId()).thenReturn(id);
+        when(server.getName()).thenReturn(name);
+        when(server.getStatus()).thenReturn(Server.Status.ACTIVE);
+        when(server.getAddresses()).thenReturn(ImmutableMultimap.of());
+        when(server.getDiskConfig()).thenReturn(Optional.absent());
+        return server;
+    }
+
+    @Test
+    public void testRehydratedReconciledAfterFailedInitialization() throws IOException {
+        for (OpenstackInstanceJournal.Entry entry : loadJournal()) {
+            image.rehydrateInstance(entry);
+        }
+        Assert.assertEquals(image.getInstancesCount(), 2);
+        // Initialization failed: instances not restored, and servers not listed yet
+        image.processError("Current instances (if any) cannot be restored", new OpenstackException("failure"));
+        image.processStatusError(new OpenstackException("failure"));
+        Assert.assertEquals(image.getInstancesCount(), 2);
+        Assert.assertEquals(image.findInstanceById("1").getStatus(), InstanceStatus.SCHEDULED_TO_START);
+
+        // First servers list: interrupted launch dropped, other one reconciled
+        image.updateInstancesStatus(Collections.singletonList(server("server-2", "image-2")));
+        Assert.assertEquals(image.getInstancesCount(), 1);
+        Assert.assertNull(image.findInstanceById("1"));
+        Assert.assertFalse(image.findInstanceById("2").isRehydrated());
+        Assert.assertEquals(image.findInstanceById("2").getStatus(), InstanceStatus.RUNNING);
+    }
+
+    @Test
+    public void testRehydratedDroppedAfterTimeout() throws Exception {
+        for (OpenstackInstanceJournal.Entry entry : loadJournal()) {
+            image.rehydrateInstance(entry);
+        }
+        TeamCityPropertiesMock.addProperty(OpenstackInstanceJournal.JOURNAL_RECONCILE_TIMEOUT_KEY, "0");
+        propertiesMocked = true;
+        Thread.sleep(10);
+        // Servers never listed: interrupted launch dropped, completed one kept (server status not known)
+        image.processStatusError(new OpenstackException("failure"));
+        Assert.assertEquals(image.getInstancesCount(), 1);
+        Assert.assertNull(image.findInstanceById("1"));
+        Assert.assertNotNull(image.findInstanceById("2"));
+    }
+
+    @Test
+    public void testParkedRestoredWithFloatingIp() {
+        OpenstackFloatingIpPool floatingIpPool = mock(OpenstackFloatingIpPool.class);
+        OpenstackCloudImage reuseImage = new OpenstackCloudImage(mock(OpenstackApi.class), "profile", "image", "image", "os-image", "flavor", null,
+                true, 0, true, false, floatingIpPool, new CreateServerOptions(), null, mock(ServerPaths.class), executor,
+                mock(OpenstackLaunchPipeline.class), new OpenstackInstanceIndex(), mock(OpenstackInstanceJournal.class));
+        Server parked = server("server-1", "image-1");
+        when(parked.getStatus()).thenReturn(Server.Status.SHUTOFF);
+        when(parked.getMetadata()).thenReturn(ImmutableMap.of(OpenstackCloudParameters.SERVER_INSTANCE_ID, "1"));
+        when(parked.getAddresses()).thenReturn(ImmutableMultimap.of("network",
+                Address.builder().addr("10.0.0.1").version(4).type("fixed").build(), "network",
+                Address.builder().addr("1.2.3.4").version(4).type("floating").build()));
+
+        reuseImage.restoreInstances("os-image-id", Collections.singletonList(parked));
+        Assert.assertEquals(reuseImage.getParkedCount(), 1);
+        Assert.assertEquals(reuseImage.getInstancesCount(), 0);
+        // Still associated: reserved, not handed out to another instance
+        verify(floatingIpPool).restore("1.2.3.4");
+        verify(floatingIpPool, never()).restore("10.0.0.1");
+    }
+
+    @Test
+    public void testDisposeKeepsJournal() {
+        image.startNewInstance(createUserData());
+        image.dispose();
+        Assert.assertEquals(image.getInstancesCount(), 0);
+        // Still live for next profile instance
+        verify(journal, never()).removed(anyString(), anyString());
+    }
+}
@@ -0,0 +1,233 @@
+package jetbrains.buildServer.clouds.openstack;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jclouds.openstack.nova.v2_0.domain.Address;
+import org.jclouds.openstack.nova.v2_0.domain.Server;
+import org.jclouds.openstack.nova.v2_0.domain.ServerCreated;
+import org.jclouds.openstack.nova.v2_0.options.CreateServerOptions;
+import org.jclouds.openstack.v2_0.domain.PaginatedCollection;
+import org.jclouds.openstack.v2_0.options.PaginationOptions;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMultimap;
+
+import jetbrains.buildServer.clouds.CloudInstanceUserData;
+import jetbrains.buildServer.clouds.InstanceStatus;
+import jetbrains.buildServer.serverSide.ServerPaths;
+
+public class OpenstackCloudInstanceTest {
+
+    private ScheduledExecutorService executor;
+    private OpenstackCloudImage image;
+    private OpenstackApi openstackApi;
+    private volatile boolean fixedIps;
+
+    @BeforeMethod
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception {
+        // Only one thread for all instances, as an image executor
+        executor = Executors.newSingleThreadScheduledExecutor();
+        openstackApi = mock(OpenstackApi.class);
+        image = mock(OpenstackCloudImage.class);
+        when(image.getName()).thenReturn("image");
+        when(image.isAutoFloatingIp()).thenReturn(true);
+        when(image.getLaunchTemplate()).thenReturn(new OpenstackLaunchTemplate("image-id", "flavor-id", Collections.singletonList("network-id"),
+                Collections.singletonList("default"), null, null, null));
+        when(image.getOpenstackApi()).thenReturn(openstackApi);
+        doAnswer(i -> {
+            executor.execute(i.getArgument(0));
+            return null;
+        }).when(image).launch(any(Runnable.class));
+        when(openstackApi.createServer(anyString(), eq("image-id"), eq("flavor-id"), any(CreateServerOptions.class)))
+                .thenAnswer(i -> ServerCreated.builder().id("id-" + i.getArgument(0)).name(i.getArgument(0)).build());
+        when(openstackApi.getServer(anyString())).thenAnswer(i -> server(i.getArgument(0)));
+        when(openstackApi.listServers(any(PaginationOptions.class))).thenAnswer(i -> {
+            List<Server> servers = new ArrayList<>();
+            for (int n = 0; n < 10; n++) {
+                servers.add(server("id-image-" + n));
+            }
+            PaginatedCollection<Server> page = mock(PaginatedCollection.class);
+            when(page.iterator()).thenAnswer(j -> servers.iterator());
+            when(page.nextMarker()).thenReturn(Optional.absent());
+            return page;
+        });
+        when(image.getServerLookup()).thenReturn(new OpenstackServerLookup(openstackApi, ImmutableMultimap.of("name", "^(image)-[0-9]+$")));
+    }
+
+    private Server server(String id) {
+        Server server = mock(Server.class);
+        when(server.getId()).thenReturn(id);
+        when(server.getAddresses()).thenReturn(fixedIps ? ImmutableMultimap.of("net", Address.createV4("10.0.0.1")) : ImmutableMultimap.of());
+        return server;
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testFloatingIpAssociationNotBlocking() {
+        List<OpenstackCloudInstance> instances = new ArrayList<>();
+        // Stubbed once: mock not stubbed again while launched instances use it
+        AtomicInteger reserved = new AtomicInteger();
+        when(image.reserveFloatingIp()).thenAnswer(i -> "1.1.1." + reserved.getAndIncrement());
+        for (int i = 0; i < 10; i++) {
+            OpenstackCloudInstance instance = new OpenstackCloudInstance(image, String.valueOf(i), mock(ServerPaths.class), executor);
+            instance.start(mock(CloudInstanceUserData.class));
+            verify(openstackApi, timeout(1000)).createServer(eq("image-" + i), anyString(), anyString(), any(CreateServerOptions.class));
+            instances.add(instance);
+        }
+
+        // All servers created while fixed ips are waited, then all associated in one backoff period
+        fixedIps = true;
+        for (int i = 0; i < 10; i++) {
+            verify(image, timeout(5000)).associateFloatingIp("id-image-" + i, "1.1.1." + i);
+        }
+        for (OpenstackCloudInstance instance : instances) {
+            Assert.assertEquals(instance.getStatus(), InstanceStatus.STARTING);
+        }
+        verify(image, never()).releaseFloatingIp(anyString());
+        // Fixed ip waits of the burst coalesced in servers listings
+        verify(openstackApi, atLeastOnce()).listServers(any(PaginationOptions.class));
+    }
+
+    @Test
+    public void testFloatingIpReleasedOnStop() {
+        when(image.reserveFloatingIp()).thenReturn("1.1.1.1");
+        OpenstackCloudInstance instance = new OpenstackCloudInstance(image, "1", mock(ServerPaths.class), executor);
+        instance.start(mock(CloudInstanceUserData.class));
+        verify(openstackApi, timeout(1000)).createServer(anyString(), anyString(), anyString(), any(CreateServerOptions.class));
+
+        instance.stop();
+        verify(image, timeout(5000)).releaseFloatingIp("1.1.1.1");
+        verify(image, never()).associateFloatingIp(anyString(), anyString());
+        Assert.assertNull(instance.getNetworkIdentity());
+    }
+
+    @Test
+    public void testParkedOnStopWithReuse() {
+        when(image.isAutoFloatingIp()).thenReturn(false);
+        when(image.isReuse()).thenReturn(true);
+        OpenstackCloudInstance instance = new OpenstackCloudInstance(image, "1", mock(ServerPaths.class), executor);
+        instance.start(mock(CloudInstanceUserData.class));
+        verify(image, timeout(1000)).serverCreated(instance, null);
+
+        instance.stop();
+        verify(openstackApi).stopServer("id-image-1");
+        instance.updateStatus(Server.Status.SHUTOFF);
+        Assert.assertEquals(instance.getStatus(), InstanceStatus.STOPPED);
+        Assert.assertTrue(instance.isParked());
+        verify(image).park(instance);
+        verify(openstackApi, never()).deleteServer(anyString());
+    }
+
+    @Test
+    public void testStartParked() {
+        when(image.isAutoFloatingIp()).thenReturn(false);
+        when(image.isReuse()).thenReturn(true);
+        OpenstackCloudInstance instance = new OpenstackCloudInstance(image, "1", mock(ServerPaths.class), executor);
+        instance.startParked(mock(CloudInstanceUserData.class), new OpenstackParkedServers.Parked("1", "server-1", "1.1.1.1", 0));
+        verify(openstackApi, timeout(1000)).startServer("server-1");
+        verify(openstackApi).setServerMetadata(eq("server-1"), any());
+        verify(openstackApi, never()).createServer(anyString(), anyString(), anyString(), any(CreateServerOptions.class));
+        verify(image, timeout(1000)).serverCreated(instance, "1.1.1.1");
+        Assert.assertEquals(instance.getOpenstackInstanceId(), "server-1");
+        Assert.assertEquals(instance.getNetworkIdentity(), "1.1.1.1");
+
+        // Still powering on
+        instance.updateStatus(Server.Status.SHUTOFF);
+        Assert.assertEquals(instance.getStatus(), InstanceStatus.STARTING);
+        instance.updateStatus(Server.Status.ACTIVE);
+        Assert.assertEquals(instance.getStatus(), InstanceStatus.RUNNING);
+    }
+
+    @Test
+    public void testRebuildParked() {
+        when(image.isAutoFloatingIp()).thenReturn(false);
+        when(image.isReuse()).thenReturn(true);
+        when(image.isRebuild()).thenReturn(true);
+        OpenstackCloudInstance instance = new OpenstackCloudInstance(image, "1", mock(ServerPaths.class), executor);
+        instance.startParked(mock(CloudInstanceUserData.class), new OpenstackParkedServers.Parked("1", "server-1", null, 0));
+        verify(openstackApi, timeout(1000)).rebuildServer("server-1", "image-id", "image-1");
+        verify(image, timeout(1000)).serverCreated(instance, null);
+
+        // Rebuild not yet begun, then in progress
+        instance.updateStatus(Server.Status.SHUTOFF);
+        instance.updateStatus(Server.Status.REBUILD);
+        Assert.assertEquals(instance.getStatus(), InstanceStatus.STARTING);
+        verify(openstackApi, never()).startServer(anyString());
+
+        // Rebuilt, stopped state kept by Nova: powered on
+        instance.updateStatus(Server.Status.SHUTOFF);
+        verify(openstackApi).startServer("server-1");
+        instance.updateStatus(Server.Status.SHUTOFF);
+        Assert.assertEquals(instance.getStatus(), InstanceStatus.STARTING);
+        verify(openstackApi).startServer("server-1");
+        instance.updateStatus(Server.Status.ACTIVE);
+        Assert.assertEquals(instance.getStatus(), InstanceStatus.RUNNING);
+        verify(openstackApi, never()).deleteServer(anyString());
+    }
+
+
+    @Test
+    public void testAgentRegistered() {
+        Server server = server("id-image-1");
+        when(server.getName()).thenReturn("image-1");
+        when(server.getDiskConfig()).thenReturn(Optional.absent());
+        OpenstackCloudInstance instance = new OpenstackCloudInstance(image, "1", mock(ServerPaths.class), executor, server);
+        instance.updateStatus(Server.Status.BUILD);
+        Assert.assertEquals(instance.getStatus(), InstanceStatus.STARTING);
+        instance.agentRegistered();
+        Assert.assertEquals(instance.getStatus(), InstanceStatus.RUNNING);
+        Assert.assertFalse(instance.isStopping());
+
+        // Nova status lagging: not starting again
+        instance.updateStatus(Server.Status.BUILD);
+        Assert.assertEquals(instance.getStatus(), InstanceStatus.RUNNING);
+        instance.updateStatus(Server.Status.ACTIVE);
+        Assert.assertEquals(instance.getStatus(), InstanceStatus.RUNNING);
+
+        // Late registration not reviving a terminated instance
+        instance.setStatus(InstanceStatus.SCHEDULED_TO_STOP);
+        instance.agentRegistered();
+        Assert.assertEquals(instance.getStatus(), InstanceStatus.SCHEDULED_TO_STOP);
+        Assert.assertTrue(instance.isStopping());
+    }
+
+    @Test
+    public void testAgentRegisteredAfterStop() {
+        Server server = server("id-image-1");
+        when(server.getName()).thenReturn("image-1");
+        when(server.getDiskConfig()).thenReturn(Optional.absent());
+        OpenstackCloudInstance instance = new OpenstackCloudInstance(image, "1", mock(ServerPaths.class), executor, server);
+        instance.updateStatus(Server.Status.BUILD);
+        // Terminated before its agent registration is handled: not revived
+        instance.stop();
+        instance.agentRegistered();
+        Assert.assertEquals(instance.getStatus(), InstanceStatus.SCHEDULED_TO_STOP);
+        instance.updateStatus(Server.Status.ACTIVE);
+        Assert.assertEquals(instance.getStatus(), InstanceStatus.STOPPING);
+    }
+}
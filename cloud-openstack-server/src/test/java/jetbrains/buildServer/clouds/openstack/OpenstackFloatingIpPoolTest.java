@@ -0,0 +1,84 @@
+package jetbrains.buildServer.clouds.openstack;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class OpenstackFloatingIpPoolTest {
+
+    private OpenstackApi openstackApi;
+    private OpenstackFloatingIpPool pool;
+
+    @BeforeMethod
+    public void setUp() {
+        openstackApi = mock(OpenstackApi.class);
+        pool = new OpenstackFloatingIpPool(openstackApi);
+    }
+
+    @Test
+    public void testConcurrentReservations() throws Exception {
+        when(openstackApi.listFloatingIpsAvailable()).thenReturn(Arrays.asList("1.1.1.1", "1.1.1.2", "1.1.1.3", "1.1.1.4"));
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<String>> ips = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            ips.add(executor.submit(pool::reserve));
+        }
+        Set<String> reserved = new HashSet<>();
+        for (Future<String> ip : ips) {
+            reserved.add(ip.get());
+        }
+        executor.shutdown();
+
+        // One Neutron listing, no ip given twice
+        Assert.assertEquals(reserved.size(), 4);
+        verify(openstackApi, times(1)).listFloatingIpsAvailable();
+    }
+
+    @Test
+    public void testReleaseAndReclaim() {
+        // Neutron still lists reserved ips as free (not yet associated)
+        when(openstackApi.listFloatingIpsAvailable()).thenReturn(Arrays.asList("1.1.1.1", "1.1.1.2"));
+
+        Assert.assertEquals(pool.reserve(), "1.1.1.1");
+        Assert.assertEquals(pool.reserve(), "1.1.1.2");
+        Assert.assertNull(pool.reserve());
+        verify(openstackApi, times(2)).listFloatingIpsAvailable();
+
+        // Launch failure (or instance terminated) => ip available without new listing
+        pool.release("1.1.1.2");
+        pool.release("9.9.9.9");
+        Assert.assertEquals(pool.reserve(), "1.1.1.2");
+        verify(openstackApi, times(2)).listFloatingIpsAvailable();
+    }
+
+    @Test
+    public void testDiscardedNotReservedBeforeFree() {
+        when(openstackApi.listFloatingIpsAvailable()).thenReturn(Arrays.asList("1.1.1.1"));
+        Assert.assertEquals(pool.reserve(), "1.1.1.1");
+
+        // Server deleted, ip possibly still associated: not in free list, nor reserved anymore
+        pool.discard("1.1.1.1");
+        when(openstackApi.listFloatingIpsAvailable()).thenReturn(Arrays.asList());
+        Assert.assertNull(pool.reserve());
+
+        // Listed free again by Neutron once disassociated
+        when(openstackApi.listFloatingIpsAvailable()).thenReturn(Arrays.asList("1.1.1.1"));
+        Assert.assertEquals(pool.reserve(), "1.1.1.1");
+    }
+
+}
@@ -0,0 +1,39 @@
+package jetbrains.buildServer.clouds.openstack;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class OpenstackInstanceIndexTest {
+
+    private static OpenstackCloudInstance instance(String serverId) {
+        OpenstackCloudInstance instance = mock(OpenstackCloudInstance.class);
+        when(instance.getOpenstackInstanceId()).thenReturn(serverId);
+        return instance;
+    }
+
+    @Test
+    public void testIndex() {
+        OpenstackInstanceIndex index = new OpenstackInstanceIndex();
+        OpenstackCloudInstance restored = instance("uuid-1");
+        OpenstackCloudInstance starting = instance("");
+
+        index.added(restored);
+        index.added(starting);
+        Assert.assertEquals(index.getCount(), 2);
+        Assert.assertSame(index.findByServerId("uuid-1"), restored);
+        Assert.assertNull(index.findByServerId(null));
+
+        // Server id known once created
+        when(starting.getOpenstackInstanceId()).thenReturn("uuid-2");
+        Assert.assertNull(index.findByServerId("uuid-2"));
+        index.serverCreated(starting);
+        Assert.assertSame(index.findByServerId("uuid-2"), starting);
+
+        index.removed(restored);
+        Assert.assertEquals(index.getCount(), 1);
+        Assert.assertNull(index.findByServerId("uuid-1"));
+    }
+}
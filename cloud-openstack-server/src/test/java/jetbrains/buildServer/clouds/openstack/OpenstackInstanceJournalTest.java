@@ -0,0 +1,117 @@
+package jetbrains.buildServer.clouds.openstack;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import jetbrains.buildServer.serverSide.TeamCityPropertiesMock;
+
+public class OpenstackInstanceJournalTest {
+
+    private File file;
+    private boolean propertiesMocked = false;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        file = new File(Files.createTempDirectory("journal").toFile(), "openstack/journal/profile.journal");
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        if (propertiesMocked) {
+            TeamCityPropertiesMock.reset();
+            propertiesMocked = false;
+        }
+        FileUtils.deleteDirectory(file.getParentFile().getParentFile().getParentFile());
+    }
+
+    @Test
+    public void testReplay() {
+        OpenstackInstanceJournal journal = new OpenstackInstanceJournal(file);
+        Assert.assertTrue(journal.load().isEmpty());
+        journal.launched("image", "1", 1000);
+        journal.serverCreated("image", "1", "server-1", "10.0.0.1");
+        journal.launched("image", "2", 2000);
+        journal.launched("image", "3", 3000);
+        journal.serverCreated("image", "3", "server-3", null);
+        journal.removed("image", "3");
+        journal.close();
+        // Ignored once closed (profile disposed)
+        journal.removed("image", "1");
+
+        List<OpenstackInstanceJournal.Entry> entries = new ArrayList<>(new OpenstackInstanceJournal(file).load());
+        Assert.assertEquals(entries.size(), 2);
+        Assert.assertEquals(entries.get(0).getInstanceId(), "1");
+        Assert.assertEquals(entries.get(0).getServerId(), "server-1");
+        Assert.assertEquals(entries.get(0).getFloatingIp(), "10.0.0.1");
+        Assert.assertEquals(entries.get(0).getStartTime(), 1000);
+        // Launch not completed
+        Assert.assertEquals(entries.get(1).getInstanceId(), "2");
+        Assert.assertNull(entries.get(1).getServerId());
+    }
+
+    @Test
+    public void testCompaction() throws IOException {
+        TeamCityPropertiesMock.addProperty(OpenstackInstanceJournal.JOURNAL_COMPACTION_KEY, "10");
+        propertiesMocked = true;
+        OpenstackInstanceJournal journal = new OpenstackInstanceJournal(file);
+        journal.load();
+        for (int i = 0; i < 25; i++) {
+            journal.launched("image", String.valueOf(i), i);
+            if (i > 0) {
+                journal.removed("image", String.valueOf(i - 1));
+            }
+        }
+        journal.close();
+        // 49 records appended, compacted each 10 records (at most two live instances)
+        Assert.assertTrue(Files.readAllLines(file.toPath()).size() < 15);
+        List<OpenstackInstanceJournal.Entry> entries = new ArrayList<>(new OpenstackInstanceJournal(file).load());
+        Assert.assertEquals(entries.size(), 1);
+        Assert.assertEquals(entries.get(0).getInstanceId(), "24");
+        // Compacted on load
+        Assert.assertEquals(Files.readAllLines(file.toPath()).size(), 1);
+    }
+
+    @Test
+    public void testTruncatedRecord() throws IOException {
+        OpenstackInstanceJournal journal = new OpenstackInstanceJournal(file);
+        journal.load();
+        journal.launched("image", "1", 1000);
+        journal.close();
+        // Server killed while writing
+        Files.write(file.toPath(), "{\"op\":\"removed\",\"ima".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        List<OpenstackInstanceJournal.Entry> entries = new ArrayList<>(new OpenstackInstanceJournal(file).load());
+        Assert.assertEquals(entries.size(), 1);
+        Assert.assertEquals(entries.get(0).getInstanceId(), "1");
+    }
+
+    @Test
+    public void testHandover() {
+        OpenstackInstanceJournal previous = OpenstackInstanceJournal.open(file);
+        previous.load();
+        previous.launched("image", "1", 1000);
+
+        // Profile updated: next profile instance opened before previous one disposed
+        OpenstackInstanceJournal next = OpenstackInstanceJournal.open(file);
+        Assert.assertEquals(next.load().size(), 1);
+        previous.removed("image", "1");
+        next.launched("image", "2", 2000);
+        next.close();
+
+        List<OpenstackInstanceJournal.Entry> entries = new ArrayList<>(new OpenstackInstanceJournal(file).load());
+        Assert.assertEquals(entries.size(), 2);
+        Assert.assertEquals(entries.get(0).getInstanceId(), "1");
+        Assert.assertEquals(entries.get(1).getInstanceId(), "2");
+    }
+}
@@ -0,0 +1,90 @@
+package jetbrains.buildServer.clouds.openstack;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import jetbrains.buildServer.serverSide.TeamCityPropertiesMock;
+
+public class OpenstackLaunchPipelineTest {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger maxRunning = new AtomicInteger();
+    private final AtomicInteger done = new AtomicInteger();
+    private final Set<String> threads = ConcurrentHashMap.newKeySet();
+
+    @BeforeMethod
+    public void setUp() {
+        TeamCityPropertiesMock.addProperty(OpenstackLaunchPipeline.LAUNCH_IMAGE_PARALLELISM_KEY, "3");
+        TeamCityPropertiesMock.addProperty(OpenstackLaunchPipeline.LAUNCH_PROFILE_PARALLELISM_KEY, "4");
+        TeamCityPropertiesMock.addProperty(OpenstackLaunchPipeline.LAUNCH_QUEUE_KEY, "5");
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        TeamCityPropertiesMock.reset();
+    }
+
+    private Runnable launch() {
+        return () -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            threads.add(Thread.currentThread().getName());
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            running.decrementAndGet();
+            done.incrementAndGet();
+        };
+    }
+
+    @Test
+    public void testParallelismAndQueue() throws Exception {
+        OpenstackLaunchPipeline.Dispatcher dispatcher = OpenstackLaunchPipeline.createDispatcher("profile");
+        OpenstackLaunchPipeline image1 = new OpenstackLaunchPipeline("image1", dispatcher);
+        OpenstackLaunchPipeline image2 = new OpenstackLaunchPipeline("image2", dispatcher);
+
+        for (int i = 0; i < 8; i++) {
+            image1.submit(launch());
+        }
+        image2.submit(launch());
+        image2.submit(launch());
+
+        // 3 running for image1, 5 queued (full)
+        Thread.sleep(500);
+        Assert.assertEquals(image1.getQueueDepth(), 5);
+        Assert.assertTrue(image1.isFull());
+        Assert.assertThrows(RejectedExecutionException.class, () -> image1.submit(launch()));
+        Assert.assertFalse(image2.isFull());
+        // 4 launches at most for the profile, on shared workers (no launch thread of its own)
+        Assert.assertEquals(running.get(), 4);
+        for (String thread : threads) {
+            Assert.assertTrue(thread.startsWith("openstack-worker"), thread);
+        }
+
+        release.countDown();
+        long end = System.currentTimeMillis() + 10000;
+        while (done.get() < 10 && System.currentTimeMillis() < end) {
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(done.get(), 10);
+        Assert.assertEquals(maxRunning.get(), 4);
+        Assert.assertEquals(image1.getQueueDepth(), 0);
+
+        image1.dispose();
+        image2.dispose();
+        Assert.assertThrows(RejectedExecutionException.class, () -> image2.submit(launch()));
+        dispatcher.dispose();
+    }
+
+}
@@ -0,0 +1,50 @@
+package jetbrains.buildServer.clouds.openstack;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.jclouds.openstack.nova.v2_0.options.CreateServerOptions;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class OpenstackLaunchTemplateTest {
+
+    @Test
+    public void testOptionsPerLaunch() {
+        List<String> networks = new ArrayList<>(Collections.singletonList("network-id"));
+        byte[] userData = "#!/bin/bash".getBytes(StandardCharsets.UTF_8);
+        OpenstackLaunchTemplate template = new OpenstackLaunchTemplate("image-id", "flavor-id", networks, Arrays.asList("sg1", "sg2"), "key",
+                "zone1", userData);
+
+        // Template not changed by its sources
+        networks.add("other-id");
+        userData[0] = 'X';
+
+        CreateServerOptions options1 = template.createServerOptions(Collections.singletonMap("instance", "1"));
+        CreateServerOptions options2 = template.createServerOptions(Collections.singletonMap("instance", "2"));
+        Assert.assertNotSame(options1, options2);
+        Assert.assertEquals(options1.getNetworks(), Collections.singletonList("network-id"));
+        Assert.assertEquals(options1.getSecurityGroupNames().size(), 2);
+        Assert.assertEquals(options1.getKeyPairName(), "key");
+        Assert.assertEquals(options1.getAvailabilityZone(), "zone1");
+        Assert.assertTrue(options1.getConfigDrive());
+        Assert.assertTrue(options1.toString().contains("instance=1"));
+        Assert.assertTrue(options2.toString().contains("instance=2"));
+    }
+
+    @Test
+    public void testMatches() {
+        byte[] userData = "#!/bin/bash".getBytes(StandardCharsets.UTF_8);
+        List<String> networks = Collections.singletonList("network-id");
+        OpenstackLaunchTemplate template = new OpenstackLaunchTemplate("image-id", "flavor-id", networks, Collections.emptyList(), null, null,
+                userData);
+        Assert.assertTrue(template.matches("image-id", "flavor-id", networks, "#!/bin/bash".getBytes(StandardCharsets.UTF_8)));
+        Assert.assertFalse(template.matches("image-id-2", "flavor-id", networks, userData));
+        Assert.assertFalse(template.matches("image-id", "flavor-id", Collections.singletonList("network-id-2"), userData));
+        Assert.assertFalse(template.matches("image-id", "flavor-id", networks, null));
+    }
+
+}
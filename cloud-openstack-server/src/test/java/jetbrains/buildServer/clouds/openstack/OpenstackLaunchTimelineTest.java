@@ -0,0 +1,50 @@
+package jetbrains.buildServer.clouds.openstack;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import jetbrains.buildServer.clouds.openstack.OpenstackLaunchTimeline.Milestone;
+
+public class OpenstackLaunchTimelineTest {
+
+    @Test
+    public void testRecordOnce() throws Exception {
+        OpenstackLaunchTimeline timeline = new OpenstackLaunchTimeline();
+        timeline.record(Milestone.REQUESTED);
+        Thread.sleep(20);
+        timeline.record(Milestone.CREATE_SENT);
+        Long first = timeline.getElapsed(Milestone.CREATE_SENT);
+        Assert.assertNotNull(first);
+        Assert.assertTrue(first >= 20);
+        Thread.sleep(20);
+        timeline.record(Milestone.CREATE_SENT);
+        Assert.assertEquals(timeline.getElapsed(Milestone.CREATE_SENT), first);
+        Assert.assertNull(timeline.getElapsed(Milestone.ACTIVE));
+    }
+
+    @Test
+    public void testSummary() {
+        OpenstackLaunchTimeline timeline = new OpenstackLaunchTimeline();
+        Assert.assertEquals(timeline.getSummary(), "");
+        timeline.record(Milestone.REQUESTED);
+        timeline.record(Milestone.SERVER_CREATED);
+        timeline.record(Milestone.CREATE_SENT);
+        // Milestones order, whatever the recording order
+        Assert.assertTrue(timeline.getSummary().matches("create sent \\+\\d+\\.\\ds, server created \\+\\d+\\.\\ds"), timeline.getSummary());
+    }
+
+    @Test
+    public void testNoRequestNoMetrics() {
+        OpenstackMetrics.Histogram histogram = OpenstackMetrics.getInstance().getHistogram(Milestone.AGENT_REGISTERED.getMetricName());
+        long count = histogram.getCount();
+        OpenstackLaunchTimeline restored = new OpenstackLaunchTimeline();
+        restored.record(Milestone.AGENT_REGISTERED);
+        Assert.assertEquals(histogram.getCount(), count);
+        Assert.assertEquals(restored.getSummary(), "");
+
+        OpenstackLaunchTimeline launched = new OpenstackLaunchTimeline();
+        launched.record(Milestone.REQUESTED);
+        launched.record(Milestone.AGENT_REGISTERED);
+        Assert.assertEquals(histogram.getCount(), count + 1);
+    }
+}
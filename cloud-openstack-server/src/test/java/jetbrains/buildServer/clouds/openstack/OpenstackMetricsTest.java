@@ -0,0 +1,55 @@
+package jetbrains.buildServer.clouds.openstack;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMX;
+import javax.management.ObjectName;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class OpenstackMetricsTest {
+
+    @Test
+    public void testHistogram() {
+        OpenstackMetrics.Histogram histogram = new OpenstackMetrics().getHistogram("api.servers.create");
+        Assert.assertEquals(histogram.getPercentile(50), 0);
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * 10);
+        }
+        Assert.assertEquals(histogram.getCount(), 100);
+        Assert.assertEquals(histogram.getMax(), 1000);
+        // Upper bound of the bucket holding the percentile
+        Assert.assertEquals(histogram.getPercentile(50), 511);
+        Assert.assertEquals(histogram.getPercentile(95), 1000);
+        Assert.assertTrue(histogram.getPercentile(10) >= 100 && histogram.getPercentile(10) <= 127);
+    }
+
+    @Test
+    public void testCountersAndGauges() {
+        OpenstackMetrics metrics = new OpenstackMetrics();
+        metrics.increment("api.servers.list.errors");
+        metrics.increment("api.servers.list.errors");
+        metrics.record("poll.cycle", 42);
+        AtomicInteger depth = new AtomicInteger(3);
+        metrics.registerGauge("launch.queue.profile.image", depth::get);
+
+        Assert.assertEquals(metrics.getCounters().get("api.servers.list.errors"), Long.valueOf(2));
+        Assert.assertEquals(metrics.getDurations().get("poll.cycle.count"), Long.valueOf(1));
+        Assert.assertEquals(metrics.getDurations().get("poll.cycle.max"), Long.valueOf(42));
+        depth.set(5);
+        Assert.assertEquals(metrics.getGauges().get("launch.queue.profile.image"), Long.valueOf(5));
+
+        metrics.unregisterGauges("launch.queue.profile.");
+        Assert.assertTrue(metrics.getGauges().isEmpty());
+    }
+
+    @Test
+    public void testJmxExport() throws Exception {
+        OpenstackMetrics.getInstance().increment("test.jmx");
+        OpenstackMetricsMXBean proxy = JMX.newMXBeanProxy(ManagementFactory.getPlatformMBeanServer(), new ObjectName(OpenstackMetrics.OBJECT_NAME),
+                OpenstackMetricsMXBean.class);
+        Assert.assertTrue(proxy.getCounters().get("test.jmx") >= 1);
+    }
+}
@@ -0,0 +1,52 @@
+package jetbrains.buildServer.clouds.openstack;
+
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import jetbrains.buildServer.serverSide.TeamCityPropertiesMock;
+
+public class OpenstackParkedServersTest {
+
+    @AfterMethod
+    public void tearDown() {
+        TeamCityPropertiesMock.reset();
+    }
+
+    @Test
+    public void testMostRecentReusedFirst() {
+        TeamCityPropertiesMock.addProperty(OpenstackParkedServers.REUSE_PARKED_KEY, "2");
+        OpenstackParkedServers parked = new OpenstackParkedServers();
+        long now = System.currentTimeMillis();
+        Assert.assertTrue(parked.park(new OpenstackParkedServers.Parked("2", "server-2", null, now - 2000)).isEmpty());
+        // Restored servers parked in any order
+        Assert.assertTrue(parked.park(new OpenstackParkedServers.Parked("3", "server-3", null, now - 1000)).isEmpty());
+        List<OpenstackParkedServers.Parked> evicted = parked.park(new OpenstackParkedServers.Parked("1", "server-1", null, now - 3000));
+        // Least recently parked evicted when too many
+        Assert.assertEquals(evicted.size(), 1);
+        Assert.assertEquals(evicted.get(0).getServerId(), "server-1");
+
+        Assert.assertEquals(parked.take().getServerId(), "server-3");
+        Assert.assertEquals(parked.take().getServerId(), "server-2");
+        Assert.assertNull(parked.take());
+    }
+
+    @Test
+    public void testEviction() {
+        TeamCityPropertiesMock.addProperty(OpenstackParkedServers.REUSE_TTL_KEY, "60");
+        OpenstackParkedServers parked = new OpenstackParkedServers();
+        long now = System.currentTimeMillis();
+        parked.park(new OpenstackParkedServers.Parked("1", "server-1", null, now - 120000));
+        parked.park(new OpenstackParkedServers.Parked("2", "server-2", null, now));
+        parked.park(new OpenstackParkedServers.Parked("3", "server-3", null, now));
+
+        List<OpenstackParkedServers.Parked> evicted = parked.evict(p -> p.getServerId().equals("server-3"));
+        // Too old one to delete, vanished one just forgotten
+        Assert.assertEquals(evicted.size(), 1);
+        Assert.assertEquals(evicted.get(0).getServerId(), "server-1");
+        Assert.assertEquals(parked.size(), 1);
+        Assert.assertEquals(parked.take().getServerId(), "server-2");
+    }
+}
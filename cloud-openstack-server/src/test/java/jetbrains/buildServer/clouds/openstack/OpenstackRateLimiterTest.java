@@ -0,0 +1,132 @@
+package jetbrains.buildServer.clouds.openstack;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jclouds.http.HttpResponse;
+import org.jclouds.http.HttpResponseException;
+import org.jclouds.rest.InsufficientResourcesException;
+import org.jclouds.rest.RateLimitExceededException;
+import org.jclouds.rest.RetryAfterException;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import jetbrains.buildServer.serverSide.TeamCityPropertiesMock;
+
+public class OpenstackRateLimiterTest {
+
+    private boolean propertiesMocked = false;
+
+    @AfterMethod
+    public void tearDown() {
+        if (propertiesMocked) {
+            TeamCityPropertiesMock.reset();
+            propertiesMocked = false;
+        }
+    }
+
+    private static HttpResponseException httpError(int status, String retryAfter) {
+        HttpResponse.Builder<?> response = HttpResponse.builder().statusCode(status);
+        if (retryAfter != null) {
+            response.addHeader("Retry-After", retryAfter);
+        }
+        return new HttpResponseException("error", null, response.build());
+    }
+
+    @Test
+    public void testOverLimitDetection() {
+        Assert.assertEquals(OpenstackRateLimiter.getOverLimitRetryAfter(new RetryAfterException("over limit", 7)), Integer.valueOf(7));
+        Assert.assertEquals(OpenstackRateLimiter.getOverLimitRetryAfter(new RateLimitExceededException("too many")), Integer.valueOf(0));
+        Assert.assertEquals(OpenstackRateLimiter.getOverLimitRetryAfter(httpError(429, "2")), Integer.valueOf(2));
+        Assert.assertEquals(OpenstackRateLimiter.getOverLimitRetryAfter(httpError(503, null)), Integer.valueOf(0));
+        Assert.assertEquals(OpenstackRateLimiter.getOverLimitRetryAfter(new IllegalStateException(httpError(413, "a date"))), Integer.valueOf(0));
+        Assert.assertNull(OpenstackRateLimiter.getOverLimitRetryAfter(httpError(404, null)));
+        Assert.assertNull(OpenstackRateLimiter.getOverLimitRetryAfter(new InsufficientResourcesException("quota exceeded", httpError(413, null))));
+        Assert.assertNull(OpenstackRateLimiter.getOverLimitRetryAfter(new IllegalStateException("other")));
+    }
+
+    @Test
+    public void testSteadyRate() {
+        OpenstackRateLimiter limiter = new OpenstackRateLimiter("test", 10);
+        long begin = System.currentTimeMillis();
+        // 10 calls in burst, then 10 per second
+        for (int i = 0; i < 15; i++) {
+            limiter.run(() -> {
+            });
+        }
+        Assert.assertTrue(System.currentTimeMillis() - begin >= 400);
+    }
+
+    @Test
+    public void testRetryAfterAndAdaptiveRate() throws Exception {
+        OpenstackRateLimiter limiter = new OpenstackRateLimiter("test", 10);
+        AtomicInteger calls = new AtomicInteger();
+        OpenstackRateLimiter.OverLimitException overLimit = Assert.expectThrows(OpenstackRateLimiter.OverLimitException.class,
+                () -> limiter.run(() -> {
+                    calls.incrementAndGet();
+                    throw new RetryAfterException("over limit", 1);
+                }));
+        Assert.assertTrue(overLimit.getDelay() > 900, String.valueOf(overLimit.getDelay()));
+        // Refused without waiting during backoff, caller rescheduling the call
+        long begin = System.currentTimeMillis();
+        Assert.assertThrows(OpenstackRateLimiter.OverLimitException.class, () -> limiter.run(calls::incrementAndGet));
+        Assert.assertTrue(System.currentTimeMillis() - begin < 500);
+        Assert.assertEquals(calls.get(), 1);
+
+        Thread.sleep(overLimit.getDelay());
+        Assert.assertEquals(limiter.call(() -> "created"), "created");
+        // Halved, then increased on success
+        Assert.assertEquals(limiter.getRate(), 5.5, 0.001);
+    }
+
+    @Test
+    public void testNotIdempotentRetriedOnlyIfRejected() {
+        TeamCityPropertiesMock.addProperty(OpenstackRateLimiter.RATE_LIMIT_BACKOFF_KEY, "0");
+        propertiesMocked = true;
+        OpenstackRateLimiter limiter = new OpenstackRateLimiter("test", 10);
+        // 503 possibly after Nova accepted the creation
+        HttpResponseException unavailable = httpError(503, null);
+        Assert.assertSame(Assert.expectThrows(HttpResponseException.class, () -> limiter.call(() -> {
+            throw unavailable;
+        }, false)), unavailable);
+        Assert.assertThrows(OpenstackRateLimiter.OverLimitException.class, () -> limiter.call(() -> {
+            throw httpError(429, null);
+        }, false));
+        Assert.assertThrows(OpenstackRateLimiter.OverLimitException.class, () -> limiter.call(() -> {
+            throw httpError(503, null);
+        }, true));
+        Assert.assertThrows(IllegalArgumentException.class, () -> limiter.call(() -> {
+            throw new IllegalArgumentException("bad request");
+        }, true));
+        Assert.assertTrue(OpenstackRateLimiter.isRejected(new RetryAfterException("over limit", httpError(413, "1"), 1)));
+        Assert.assertFalse(OpenstackRateLimiter.isRejected(new RetryAfterException("unavailable", httpError(503, "1"), 1)));
+    }
+
+    @Test
+    public void testEndpointLimitersReleased() {
+        OpenstackRateLimiter first = OpenstackRateLimiter.forEndpoint("http://released", "nova", OpenstackRateLimiter.Operation.READ);
+        OpenstackRateLimiter second = OpenstackRateLimiter.forEndpoint("http://released", "nova", OpenstackRateLimiter.Operation.READ);
+        Assert.assertSame(second, first);
+        OpenstackRateLimiter.release(first);
+        Assert.assertSame(OpenstackRateLimiter.forEndpoint("http://released", "nova", OpenstackRateLimiter.Operation.READ), first);
+
+        // Last user released: learned rate forgotten
+        OpenstackRateLimiter.release(first);
+        OpenstackRateLimiter.release(first);
+        OpenstackRateLimiter next = OpenstackRateLimiter.forEndpoint("http://released", "nova", OpenstackRateLimiter.Operation.READ);
+        Assert.assertNotSame(next, first);
+        OpenstackRateLimiter.release(next);
+    }
+
+    @Test
+    public void testMaxRateReadAgain() {
+        OpenstackRateLimiter limiter = OpenstackRateLimiter.forEndpoint("http://rate", "nova", OpenstackRateLimiter.Operation.CREATE);
+        Assert.assertEquals(limiter.getRate(), (double) OpenstackRateLimiter.RATE_LIMIT_CREATE_DEFAULT_VALUE);
+        TeamCityPropertiesMock.addProperty(OpenstackRateLimiter.RATE_LIMIT_CREATE_KEY, "1");
+        propertiesMocked = true;
+        limiter.run(() -> {
+        });
+        Assert.assertEquals(limiter.getRate(), 1.0);
+        OpenstackRateLimiter.release(limiter);
+    }
+}
@@ -0,0 +1,90 @@
+package jetbrains.buildServer.clouds.openstack;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class OpenstackSchedulerTest {
+
+    @Test
+    public void testThreadsCountDoesNotDependOnImages() throws Exception {
+        OpenstackScheduler scheduler = new OpenstackScheduler(1, 4);
+        ExecutorServiceFactory profile = scheduler.createProfile("profile");
+        List<ScheduledExecutorService> images = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(50);
+        for (int i = 0; i < 50; i++) {
+            ScheduledExecutorService image = profile.createExecutorService("image" + i);
+            image.schedule(done::countDown, 10, TimeUnit.MILLISECONDS);
+            images.add(image);
+        }
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        Assert.assertTrue(scheduler.getThreadsCount() <= 5, "Threads: " + scheduler.getThreadsCount());
+        for (ScheduledExecutorService image : images) {
+            image.shutdown();
+            Assert.assertTrue(image.awaitTermination(1, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testSlowProfileDoesNotStarveOthers() throws Exception {
+        // More workers than a profile parallelism
+        OpenstackScheduler scheduler = new OpenstackScheduler(1, 8);
+        ScheduledExecutorService slow = scheduler.createProfile("slow").createExecutorService("image");
+        ScheduledExecutorService fast = scheduler.createProfile("fast").createExecutorService("image");
+        CountDownLatch blocked = new CountDownLatch(1);
+        for (int i = 0; i < 20; i++) {
+            slow.execute(() -> {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        CountDownLatch fastDone = new CountDownLatch(1);
+        fast.execute(fastDone::countDown);
+        Assert.assertTrue(fastDone.await(5, TimeUnit.SECONDS));
+
+        // Not started tasks are returned
+        Assert.assertFalse(slow.shutdownNow().isEmpty());
+        Assert.assertThrows(RejectedExecutionException.class, () -> slow.execute(() -> {
+        }));
+        blocked.countDown();
+        Assert.assertTrue(slow.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testFixedDelayDoesNotOverlapAndStopsOnShutdown() throws Exception {
+        OpenstackScheduler scheduler = new OpenstackScheduler(1, 4);
+        ScheduledExecutorService executor = scheduler.createProfile("profile").createExecutorService("status");
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger overlaps = new AtomicInteger();
+        CountDownLatch runs = new CountDownLatch(5);
+        ScheduledFuture<?> future = executor.scheduleWithFixedDelay(() -> {
+            if (running.incrementAndGet() > 1) {
+                overlaps.incrementAndGet();
+            }
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            running.decrementAndGet();
+            runs.countDown();
+        }, 0, 1, TimeUnit.MILLISECONDS);
+        Assert.assertTrue(runs.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(overlaps.get(), 0);
+
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        Assert.assertTrue(future.isCancelled() || future.isDone());
+    }
+}
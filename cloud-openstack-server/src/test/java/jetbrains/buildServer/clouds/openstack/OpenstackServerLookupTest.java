@@ -0,0 +1,82 @@
+package jetbrains.buildServer.clouds.openstack;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.jclouds.openstack.nova.v2_0.domain.Server;
+import org.jclouds.openstack.v2_0.domain.PaginatedCollection;
+import org.jclouds.openstack.v2_0.options.PaginationOptions;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMultimap;
+
+public class OpenstackServerLookupTest {
+
+    private OpenstackApi openstackApi;
+    private OpenstackServerLookup lookup;
+
+    @BeforeMethod
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        openstackApi = mock(OpenstackApi.class);
+        lookup = new OpenstackServerLookup(openstackApi, ImmutableMultimap.of("name", "^(image)-[0-9]+$"));
+        List<Server> servers = Arrays.asList(server("1"), server("2"), server("3"));
+        when(openstackApi.listServers(any(PaginationOptions.class))).thenAnswer(i -> {
+            PaginatedCollection<Server> page = mock(PaginatedCollection.class);
+            when(page.iterator()).thenAnswer(j -> servers.iterator());
+            when(page.nextMarker()).thenReturn(Optional.absent());
+            return page;
+        });
+        when(openstackApi.getServer(anyString())).thenAnswer(i -> server(i.getArgument(0)));
+    }
+
+    private static Server server(String id) {
+        Server server = mock(Server.class);
+        when(server.getId()).thenReturn(id);
+        return server;
+    }
+
+    @Test
+    public void testSingleWaitNotListed() {
+        lookup.waiting("1");
+        Assert.assertEquals(lookup.get("1").getId(), "1");
+        Assert.assertEquals(lookup.get("1").getId(), "1");
+        verify(openstackApi, times(2)).getServer("1");
+        verify(openstackApi, never()).listServers(any(PaginationOptions.class));
+    }
+
+    @Test
+    public void testBurstCoalesced() throws Exception {
+        lookup.waiting("1");
+        lookup.waiting("2");
+        lookup.waiting("3");
+        Assert.assertEquals(lookup.get("1").getId(), "1");
+        Assert.assertEquals(lookup.get("2").getId(), "2");
+        Assert.assertEquals(lookup.get("3").getId(), "3");
+        // Not yet listed (created after listing)
+        Assert.assertNull(lookup.get("4"));
+        verify(openstackApi, times(1)).listServers(any(PaginationOptions.class));
+        verify(openstackApi, never()).getServer(anyString());
+
+        // Window elapsed
+        Thread.sleep(OpenstackServerLookup.LAUNCH_BATCH_WINDOW_DEFAULT_VALUE + 100);
+        Assert.assertEquals(lookup.get("2").getId(), "2");
+        verify(openstackApi, times(2)).listServers(any(PaginationOptions.class));
+
+        lookup.done("1");
+        lookup.done("3");
+        lookup.get("2");
+        verify(openstackApi, times(1)).getServer("2");
+    }
+}
@@ -0,0 +1,141 @@
+package jetbrains.buildServer.clouds.openstack;
+
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import org.jclouds.openstack.nova.v2_0.domain.Server;
+import org.jclouds.openstack.v2_0.domain.PaginatedCollection;
+import org.jclouds.openstack.v2_0.options.PaginationOptions;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMultimap;
+
+public class OpenstackServersSnapshotTest {
+
+    private OpenstackApi openstackApi;
+    private OpenstackServersSnapshot snapshot;
+
+    @BeforeMethod
+    public void setUp() {
+        openstackApi = mock(OpenstackApi.class);
+        snapshot = new OpenstackServersSnapshot(openstackApi, ImmutableMultimap.of("name", "^(image)-[0-9]+$"));
+    }
+
+    private static Server server(String id, Server.Status status, long updated) {
+        Server server = mock(Server.class);
+        when(server.getId()).thenReturn(id);
+        when(server.getStatus()).thenReturn(status);
+        when(server.getUpdated()).thenReturn(new Date(updated));
+        return server;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static PaginatedCollection<Server> page(String nextMarker, Server... servers) {
+        List<Server> list = Arrays.asList(servers);
+        PaginatedCollection<Server> page = mock(PaginatedCollection.class);
+        when(page.iterator()).thenAnswer(i -> list.iterator());
+        when(page.nextMarker()).thenReturn(Optional.fromNullable(nextMarker));
+        return page;
+    }
+
+    private static PaginationOptions isFull() {
+        return argThat(o -> o != null && o.buildQueryParameters().containsKey("name") && !o.buildQueryParameters().containsKey("changes-since"));
+    }
+
+    private static PaginationOptions isChanges() {
+        return argThat(o -> o != null && o.buildQueryParameters().containsKey("name") && o.buildQueryParameters().containsKey("changes-since"));
+    }
+
+    private void mockFull(Server... servers) {
+        PaginatedCollection<Server> page = page(null, servers);
+        when(openstackApi.listServers(isFull())).thenReturn(page);
+    }
+
+    private void mockChanges(boolean paginated, Server... servers) {
+        PaginatedCollection<Server> page = page(paginated ? "marker" : null, servers);
+        when(openstackApi.listServers(isChanges())).thenReturn(page);
+    }
+
+    private static Server.Status statusOf(Collection<Server> servers, String id) {
+        for (Server server : servers) {
+            if (server.getId().equals(id)) {
+                return server.getStatus();
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void testIncremental() {
+        mockFull(server("a", Server.Status.BUILD, 1000), server("b", Server.Status.ACTIVE, 2000));
+        Assert.assertEquals(snapshot.refresh().size(), 2);
+
+        // 'a' is now active, 'b' is deleted
+        mockChanges(false, server("a", Server.Status.ACTIVE, 3000), server("b", Server.Status.DELETED, 3000));
+        Collection<Server> servers = snapshot.refresh();
+        Assert.assertEquals(servers.size(), 1);
+        Assert.assertEquals(statusOf(servers, "a"), Server.Status.ACTIVE);
+
+        // No change
+        mockChanges(false);
+        Assert.assertEquals(snapshot.refresh().size(), 1);
+
+        verify(openstackApi, times(1)).listServers(isFull());
+        verify(openstackApi, times(2)).listServers(isChanges());
+    }
+
+    @Test
+    public void testFullAfterErrorOrPagination() {
+        mockFull(server("a", Server.Status.ACTIVE, 1000));
+        snapshot.refresh();
+
+        when(openstackApi.listServers(isChanges())).thenThrow(new IllegalStateException("Nova down"));
+        Assert.assertThrows(IllegalStateException.class, () -> snapshot.refresh());
+
+        // Error => full listing
+        mockFull(server("c", Server.Status.ACTIVE, 4000));
+        Collection<Server> servers = snapshot.refresh();
+        Assert.assertEquals(servers.size(), 1);
+        Assert.assertEquals(statusOf(servers, "c"), Server.Status.ACTIVE);
+        verify(openstackApi, times(2)).listServers(isFull());
+
+        // Paginated changes => full listing
+        mockChanges(true, server("d", Server.Status.ACTIVE, 5000));
+        Assert.assertEquals(statusOf(snapshot.refresh(), "c"), Server.Status.ACTIVE);
+        verify(openstackApi, times(3)).listServers(isFull());
+    }
+
+    @Test
+    public void testFullPaginated() {
+        PaginatedCollection<Server> first = page("a", server("a", Server.Status.ACTIVE, 1000));
+        PaginatedCollection<Server> second = page(null, server("b", Server.Status.ACTIVE, 2000));
+        when(openstackApi.listServers(isFull())).thenReturn(first);
+        when(openstackApi.listServers(argThat(o -> o != null && o.buildQueryParameters().containsEntry("marker", "a")))).thenReturn(second);
+        Assert.assertEquals(snapshot.refresh().size(), 2);
+    }
+
+    @Test
+    public void testIncrementalWithoutServers() {
+        mockFull();
+        Assert.assertTrue(snapshot.refresh().isEmpty());
+
+        mockChanges(false);
+        Assert.assertTrue(snapshot.refresh().isEmpty());
+        mockChanges(false, server("a", Server.Status.BUILD, System.currentTimeMillis()));
+        Assert.assertEquals(snapshot.refresh().size(), 1);
+
+        verify(openstackApi, times(1)).listServers(isFull());
+        verify(openstackApi, times(2)).listServers(isChanges());
+    }
+}
@@ -0,0 +1,49 @@
+package jetbrains.buildServer.clouds.openstack;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Strings;
+
+public class OpenstackUserScriptTest {
+
+    @Test
+    public void testCachedUntilChanged() throws Exception {
+        File file = File.createTempFile("user-script", ".sh");
+        file.deleteOnExit();
+        FileUtils.writeStringToFile(file, "#!/bin/bash\necho 1\n", StandardCharsets.UTF_8);
+        OpenstackUserScript script = new OpenstackUserScript(file);
+
+        byte[] first = script.getUserData();
+        Assert.assertEquals(new String(first, StandardCharsets.UTF_8), "#!/bin/bash\necho 1");
+        Assert.assertSame(script.getUserData(), first);
+
+        FileUtils.writeStringToFile(file, "#!/bin/bash\necho 22\n", StandardCharsets.UTF_8);
+        Assert.assertEquals(new String(script.getUserData(), StandardCharsets.UTF_8), "#!/bin/bash\necho 22");
+    }
+
+    @Test
+    public void testTooLarge() throws Exception {
+        File file = File.createTempFile("user-script", ".sh");
+        file.deleteOnExit();
+        FileUtils.writeStringToFile(file, Strings.repeat("x", OpenstackUserScript.MAX_SIZE + 1), StandardCharsets.UTF_8);
+        OpenstackUserScript script = new OpenstackUserScript(file);
+        OpenstackException e = Assert.expectThrows(OpenstackException.class, script::getUserData);
+        Assert.assertTrue(e.getMessage().contains("too large"), e.getMessage());
+
+        FileUtils.writeStringToFile(file, Strings.repeat("x", OpenstackUserScript.MAX_SIZE), StandardCharsets.UTF_8);
+        Assert.assertEquals(script.getUserData().length, OpenstackUserScript.MAX_SIZE);
+    }
+
+    @Test
+    public void testMissing() {
+        OpenstackUserScript script = new OpenstackUserScript(new File("not-existing-user-script.sh"));
+        Assert.assertThrows(IOException.class, script::getUserData);
+    }
+
+}
@@ -20,7 +20,7 @@ public class TestCloudClientParameters extends CloudClientParameters {
 
     @Override
     public String getProfileId() {
-        throw new UnsupportedOperationException("NYI");
+        return "test-profile";
     }
 
     @Override